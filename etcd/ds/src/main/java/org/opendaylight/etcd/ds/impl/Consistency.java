@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+/**
+ * Consistency level of read transactions on an {@link EtcdDataStore}.
+ */
+public enum Consistency {
+
+    /**
+     * Reads see everything committed to etcd (by any node) before the transaction was created.
+     * This costs a round trip to the etcd server per new transaction.
+     */
+    STRONG,
+
+    /**
+     * Reads are served locally if the local DataTree was up-to-date with etcd recently enough
+     * (see the datastore's maximum staleness), otherwise like {@link #STRONG}.  Once half of the maximum
+     * staleness has passed, a read asks the etcd server for its current revision in the background, so that
+     * under steady load reads usually need no round trip to the etcd server at all.
+     *
+     * <p>Watch progress notifications also confirm that the local DataTree is up-to-date, but etcd only sends
+     * them every 10 minutes by default.  For them to matter, the etcd servers must be started with an
+     * {@code --experimental-watch-progress-notify-interval} shorter than the maximum staleness.
+     */
+    BOUNDED_STALENESS,
+
+    /**
+     * Reads see everything committed by transactions which were created by the same thread (read-your-writes),
+     * but not necessarily what other threads or nodes committed meanwhile.  This awaits the application of the
+     * highest revision committed by the thread's own transactions, without any round trip to the etcd server.
+     */
+    SESSION,
+
+    /**
+     * Reads are always served straight from the local DataTree, which may lag behind etcd.
+     */
+    LOCAL
+}
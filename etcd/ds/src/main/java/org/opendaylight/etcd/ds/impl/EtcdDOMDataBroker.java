@@ -12,11 +12,17 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
 import com.google.common.io.Files;
 import io.etcd.jetcd.Client;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import org.apache.aries.blueprint.annotation.service.Reference;
 import org.opendaylight.mdsal.dom.api.DOMDataBroker;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeReadTransaction;
 import org.opendaylight.mdsal.dom.api.DOMSchemaService;
 import org.opendaylight.mdsal.dom.spi.ForwardingDOMDataBroker;
 
@@ -29,6 +35,15 @@ import org.opendaylight.mdsal.dom.spi.ForwardingDOMDataBroker;
 // do NOT @Service(classes = DOMDataBroker.class), because we need odl:type="default" so BP XML
 public class EtcdDOMDataBroker extends ForwardingDOMDataBroker {
 
+    /**
+     * System property with the directory of the local snapshot file (see {@link EtcdDOMDataBrokerProvider});
+     * e.g. set in Karaf's etc/system.properties.  If it's not set, no snapshot is written, and on every start
+     * all data is read back from etcd.
+     */
+    public static final String SNAPSHOT_DIRECTORY_PROPERTY = "org.opendaylight.etcd.ds.snapshotDirectory";
+
+    static final String SNAPSHOT_FILE_NAME = "etcd-datastore.snapshot";
+
     private final EtcdDOMDataBrokerProvider wiring;
 
     @Inject
@@ -50,15 +65,49 @@ public class EtcdDOMDataBroker extends ForwardingDOMDataBroker {
     // the Client is set up in the OSGi Service registry by io.etcd:jetcd-osgi, based on etc/io.etcd.jetcd.cfg
     public EtcdDOMDataBroker(@Reference DOMSchemaService schemaService, @Reference Client etcdClient)
             throws Exception {
-        wiring = new EtcdDOMDataBrokerProvider(etcdClient, "", schemaService);
+        this(schemaService, etcdClient, getSnapshotDirectory());
+    }
+
+    /**
+     * Constructor with the directory of the local snapshot file, or null for none.
+     */
+    public EtcdDOMDataBroker(DOMSchemaService schemaService, Client etcdClient, @Nullable Path snapshotDirectory)
+            throws Exception {
+        wiring = new EtcdDOMDataBrokerProvider(etcdClient, "", schemaService,
+                snapshotDirectory != null ? snapshotDirectory.resolve(SNAPSHOT_FILE_NAME) : null,
+                StorageGranularity.EVERY_NODE, Consistency.STRONG, EtcdDataStore.DEFAULT_MAX_STALENESS);
         wiring.init();
     }
 
+    private static @Nullable Path getSnapshotDirectory() throws IOException {
+        String directory = System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return java.nio.file.Files.createDirectories(Paths.get(directory));
+    }
+
     @PreDestroy
     public void close() throws Exception {
         wiring.close();
     }
 
+    /**
+     * Obtain a DOMDataBroker whose read-only transactions use the given consistency level,
+     * instead of the strong consistency of this one.
+     */
+    public DOMDataBroker withConsistency(Consistency consistency) {
+        return wiring.getDOMDataBroker(consistency);
+    }
+
+    /**
+     * Open a read-only transaction with the given consistency level, without blocking the caller
+     * until the revision which that requires has been applied locally.
+     */
+    public CompletionStage<DOMDataTreeReadTransaction> newReadOnlyTransactionAsync(Consistency consistency) {
+        return wiring.newReadOnlyTransactionAsync(consistency);
+    }
+
     @Override
     protected DOMDataBroker delegate() {
         return wiring.getDOMDataBroker();
@@ -7,6 +7,7 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static java.util.Objects.requireNonNull;
 import static org.opendaylight.etcd.ds.impl.EtcdDataStore.CONFIGURATION_PREFIX;
 import static org.opendaylight.etcd.ds.impl.EtcdDataStore.OPERATIONAL_PREFIX;
 import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
@@ -14,19 +15,39 @@ import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.OPERATIONAL
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import javax.inject.Provider;
+import org.opendaylight.etcd.ds.impl.LocalSnapshotFile.Snapshot;
+import org.opendaylight.etcd.utils.LoggingKV;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
 import org.opendaylight.mdsal.binding.api.DataBroker;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
 import org.opendaylight.mdsal.dom.api.DOMDataBroker;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeReadTransaction;
 import org.opendaylight.mdsal.dom.api.DOMSchemaService;
-import org.opendaylight.mdsal.dom.broker.SerializedDOMDataBroker;
 import org.opendaylight.mdsal.dom.spi.store.DOMStore;
 import org.opendaylight.mdsal.dom.store.inmemory.InMemoryDOMDataStoreConfigProperties;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,14 +60,35 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
 
     private static final Logger LOG = LoggerFactory.getLogger(EtcdDOMDataBrokerProvider.class);
 
+    // TODO make this a configuration option
+    private static final long SNAPSHOT_INTERVAL_MINUTES = 5;
+
     private final String name;
     private final Client etcdClient;
     private final EtcdDataStore configDS;
     private final EtcdDataStore operDS;
     private final DOMDataBroker domDataBroker;
+    private final Map<Consistency, DOMDataBroker> domDataBrokersByConsistency = new EnumMap<>(Consistency.class);
     private final EtcdWatcher watcher;
     private final RevAwaiter revAwaiter;
+    private final EtcdGroupCommitter groupCommitter;
+    private final EtcdServerRevisionOracle revisionOracle;
+    private final EtcdQNameDictionary qnameDictionary;
     private final EtcdWatcherBlockingConsumer etcdWatcherConsumer;
+    private final @Nullable LocalSnapshotFile snapshotFile;
+    private final @Nullable ScheduledExecutorService snapshotExecutor;
+    private final Executor asyncReadExecutor;
+    private final ScheduledExecutorService asyncReadTimeoutExecutor;
+    private final StorageGranularity granularity;
+    private final Consistency defaultConsistency;
+    private final Duration maxStaleness;
+
+    // held while the watcher applies changes to (or resyncs) both data stores and updates the revAwaiter, so that
+    // writeSnapshot() reads their content together with the revision which it is actually at
+    private final Object applyLock = new Object();
+
+    // the cluster ID of the etcd server, which local snapshots are only valid for
+    private volatile long clusterId;
 
     /**
      * Constructor.
@@ -58,48 +100,235 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
      * @param schemas           the DOMSchemaService
      */
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas) throws Exception {
+        this(etcdClient, nodeName, schemas, null, StorageGranularity.EVERY_NODE, Consistency.STRONG,
+                EtcdDataStore.DEFAULT_MAX_STALENESS);
+    }
+
+    /**
+     * Constructor with a local snapshot file, and the storage policy and read consistency of both data stores.
+     *
+     * @param snapshotFile       the local snapshot file, or null for none; see {@link #EtcdDOMDataBrokerProvider(
+     *                           Client, String, DOMSchemaService, ListeningExecutorService, ListeningExecutorService,
+     *                           Executor, Path, StorageGranularity, Consistency, Duration)}
+     * @param granularity        how fine-grained data is stored in etcd; must be the same on all nodes of a cluster
+     * @param defaultConsistency consistency level of read-only transactions of {@link #getDOMDataBroker()}
+     * @param maxStaleness       how stale the local DataTree may be for {@link Consistency#BOUNDED_STALENESS}
+     */
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas,
+            @Nullable Path snapshotFile, StorageGranularity granularity, Consistency defaultConsistency,
+            Duration maxStaleness) throws Exception {
         // choice of suitable executors originally inspired from
         // org.opendaylight.mdsal.binding.dom.adapter.test.ConcurrentDataBrokerTestCustomizer
         this(etcdClient, nodeName, schemas,
                 Executors.newListeningSingleThreadExecutor("EtcdDB-commitCoordinator", LOG),
-                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG));
+                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG),
+                Executors.newListeningCachedThreadPool("EtcdDB-asyncReads", LOG), snapshotFile,
+                granularity, defaultConsistency, maxStaleness);
     }
 
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
             ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor)
             throws Exception {
+        this(etcdClient, nodeName, schemaService, commitCoordinatorExecutor, dtclExecutor,
+                Executors.newListeningCachedThreadPool("EtcdDB-asyncReads", LOG), null);
+    }
+
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
+            ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor,
+            Executor asyncReadExecutor, @Nullable Path snapshotFile) throws Exception {
+        this(etcdClient, nodeName, schemaService, commitCoordinatorExecutor, dtclExecutor, asyncReadExecutor,
+                snapshotFile, StorageGranularity.EVERY_NODE, Consistency.STRONG, EtcdDataStore.DEFAULT_MAX_STALENESS);
+    }
+
+    /**
+     * Constructor with a local snapshot file.  If it exists on {@link #init()}, it is loaded instead of reading
+     * back all content from etcd (unless etcd has meanwhile compacted away the revision it was taken at);
+     * it is then periodically re-written, and on {@link #close()}.  The storage policy and read consistency are
+     * as in {@link #EtcdDOMDataBrokerProvider(Client, String, DOMSchemaService, Path, StorageGranularity,
+     * Consistency, Duration)}.
+     *
+     * @param asyncReadExecutor the executor which completes the futures of {@link #newReadOnlyTransactionAsync(
+     *        Consistency)}, and thus runs the (non-async) callbacks chained to them; this must not be one which
+     *        is needed to apply watch events, as such callbacks may block awaiting that (e.g. by opening another
+     *        read-only transaction)
+     */
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
+            ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor,
+            Executor asyncReadExecutor, @Nullable Path snapshotFile,
+            StorageGranularity granularity, Consistency defaultConsistency, Duration maxStaleness) throws Exception {
         this.name = nodeName;
         this.etcdClient = etcdClient;
+        this.asyncReadExecutor = requireNonNull(asyncReadExecutor, "asyncReadExecutor");
+        this.granularity = requireNonNull(granularity, "granularity");
+        this.defaultConsistency = requireNonNull(defaultConsistency, "defaultConsistency");
+        this.maxStaleness = requireNonNull(maxStaleness, "maxStaleness");
+        this.asyncReadTimeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                "EtcdDB-asyncReadTimeouts-" + nodeName, LOG);
 
         revAwaiter = new RevAwaiter(nodeName);
+        // shared by both data stores, so that their transactions can be grouped into the same etcd Txn
+        groupCommitter = new EtcdGroupCommitter(nodeName, new LoggingKV(nodeName + " ", etcdClient.getKVClient()));
+        // shared by both data stores, so that all their concurrently opened transactions share server revision GETs
+        revisionOracle = new EtcdServerRevisionOracle(etcdClient.getKVClient());
+        // shared by both data stores, and (through etcd) by all nodes
+        qnameDictionary = new EtcdQNameDictionary(nodeName, etcdClient.getKVClient());
 
         // copy/pasted from org.opendaylight.mdsal.binding.dom.adapter.test.AbstractDataBrokerTestCustomizer:
         configDS = createConfigurationDatastore(CONFIGURATION, dtclExecutor, schemaService);
         operDS = createConfigurationDatastore(OPERATIONAL, dtclExecutor, schemaService);
         Map<LogicalDatastoreType, DOMStore> datastores = ImmutableMap.of(CONFIGURATION, configDS, OPERATIONAL, operDS);
-        // TODO use ConcurrentDOMDataBroker instead SerializedDOMDataBroker ?
-        domDataBroker = new SerializedDOMDataBroker(datastores, commitCoordinatorExecutor);
+        // NOT SerializedDOMDataBroker, because that blocks its commit coordinator thread until etcd has replied
+        domDataBroker = new EtcdPipelinedDOMDataBroker(datastores, commitCoordinatorExecutor);
+        for (Consistency consistency : Consistency.values()) {
+            domDataBrokersByConsistency.put(consistency, new EtcdPipelinedDOMDataBroker(
+                    ImmutableMap.of(CONFIGURATION, configDS.withConsistency(consistency),
+                                    OPERATIONAL, operDS.withConsistency(consistency)), commitCoordinatorExecutor));
+        }
 
         etcdWatcherConsumer = new EtcdWatcherBlockingConsumer(
                 new EtcdWatcherSplittingConsumer(Optional.of(revAwaiter),
                         ImmutableMap.of(CONFIGURATION_PREFIX, configDS, OPERATIONAL_PREFIX, operDS)));
-        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, etcdWatcherConsumer);
+        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, this::applyWatched,
+                revAwaiter::getCurrentRev, this::resync);
+
+        if (snapshotFile != null) {
+            this.snapshotFile = new LocalSnapshotFile(snapshotFile);
+            this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor("EtcdDB-snapshot-" + nodeName, LOG);
+        } else {
+            this.snapshotFile = null;
+            this.snapshotExecutor = null;
+        }
     }
 
     public void init() throws Exception {
-        long revNow = EtcdServerUtils.getServerRevision(etcdClient.getKVClient());
-        configDS.init(revNow);
-        operDS.init(revNow);
-        revAwaiter.update(revNow);
+        qnameDictionary.init();
+        byte formatVersion = EtcdFormatVersion.init(name, etcdClient.getKVClient());
+        OptionalLong snapshotRev = initFromSnapshot(formatVersion);
+        long rev;
+        if (snapshotRev.isPresent()) {
+            rev = snapshotRev.getAsLong();
+            revAwaiter.update(rev);
+        } else {
+            long askedNanos = System.nanoTime();
+            rev = revisionOracle.getServerRevision();
+            configDS.init(rev, formatVersion);
+            operDS.init(rev, formatVersion);
+            revAwaiter.update(rev);
+            revAwaiter.confirmed(askedNanos);
+        }
         // start watching for changes one revision AFTER what we got
-        watcher.start(revNow + 1);
+        watcher.start(rev + 1);
+
+        if (snapshotExecutor != null) {
+            snapshotExecutor.scheduleWithFixedDelay(this::writeSnapshotAndLogFailure,
+                    SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Initialize the data stores from the local snapshot, if there is one which is still usable.
+     * @return the revision of the snapshot, or empty if the data stores were not initialized
+     */
+    private OptionalLong initFromSnapshot(byte formatVersion) throws Exception {
+        if (snapshotFile == null) {
+            return OptionalLong.empty();
+        }
+        Header header = EtcdServerUtils.getServerHeader(etcdClient.getKVClient());
+        clusterId = header.getClusterId();
+
+        Optional<Snapshot> optSnapshot;
+        try {
+            optSnapshot = snapshotFile.read();
+        } catch (IOException e) {
+            LOG.warn("{} could not read local snapshot {}, reading all from etcd instead",
+                    name, snapshotFile.getPath(), e);
+            return OptionalLong.empty();
+        }
+        if (!optSnapshot.isPresent()) {
+            return OptionalLong.empty();
+        }
+        Snapshot snapshot = optSnapshot.get();
+        if (snapshot.getClusterId() != clusterId
+                || !EtcdServerUtils.isRevisionAvailable(etcdClient.getKVClient(), snapshot.getRevision())) {
+            LOG.info("{} cannot use local snapshot {} (etcd cluster ID {}, current revision {}), reading all from etcd",
+                    name, snapshot, clusterId, header.getRevision());
+            return OptionalLong.empty();
+        }
+
+        // if one of them does not match the schema anymore, that data store reads from etcd at the same revision
+        configDS.init(snapshot.getRevision(), formatVersion,
+                snapshot.getRoot(EtcdDataStore.CONFIGURATION_PREFIX).orElse(null));
+        operDS.init(snapshot.getRevision(), formatVersion,
+                snapshot.getRoot(EtcdDataStore.OPERATIONAL_PREFIX).orElse(null));
+        LOG.info("{} initialized from local snapshot {}, catching up with {} revisions from etcd",
+                name, snapshot, header.getRevision() - snapshot.getRevision());
+        return OptionalLong.of(snapshot.getRevision());
+    }
+
+    /**
+     * Bring both data stores up to date with etcd at its current revision, see {@link EtcdDataStore#resync(long)}.
+     * @return the revision which the data stores are now at
+     */
+    private long resync() throws EtcdException {
+        synchronized (applyLock) {
+            long rev = revisionOracle.getServerRevision();
+            configDS.resync(rev);
+            operDS.resync(rev);
+            // not update(), because if nothing changed since then, this may be the same as the current revision
+            revAwaiter.progress(rev);
+            return rev;
+        }
+    }
+
+    private void applyWatched(Long revision, List<WatchEvent> events) throws EtcdException {
+        synchronized (applyLock) {
+            etcdWatcherConsumer.accept(revision, events);
+        }
+    }
+
+    /**
+     * Write the local snapshot.  The content of both data stores is read together with the revision, while
+     * the watcher is not applying any changes, so that it is exactly the content at that revision; if it included
+     * changes of later revisions, then watching from the revision after the one of the snapshot would
+     * re-apply them, and listeners would be notified about them again (or the datastores resynced).
+     */
+    private void writeSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+        long rev;
+        ImmutableMap.Builder<ByteSequence, NormalizedNode<?, ?>> roots = ImmutableMap.builder();
+        synchronized (applyLock) {
+            rev = revAwaiter.getCurrentRev();
+            configDS.readRoot().ifPresent(root -> roots.put(EtcdDataStore.CONFIGURATION_PREFIX, root));
+            operDS.readRoot().ifPresent(root -> roots.put(EtcdDataStore.OPERATIONAL_PREFIX, root));
+        }
+        Snapshot snapshot = new Snapshot(clusterId, rev, roots.build());
+        snapshotFile.write(snapshot);
+        LOG.info("{} wrote local snapshot {} to {}", name, snapshot, snapshotFile.getPath());
+    }
+
+    private void writeSnapshotAndLogFailure() {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            LOG.error("{} failed to write local snapshot", name, e);
+        }
     }
 
     @Override
     public void close() throws Exception {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+        asyncReadTimeoutExecutor.shutdownNow();
         if (watcher != null) {
             watcher.close();
         }
+        // after the watcher is closed, so that the snapshot is as recent as possible
+        if (snapshotFile != null && clusterId != 0) {
+            writeSnapshotAndLogFailure();
+        }
         if (operDS != null) {
             operDS.close();
         }
@@ -117,6 +346,41 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
         return domDataBroker;
     }
 
+    /**
+     * Obtain a DOMDataBroker whose read-only transactions use the given consistency level.
+     * It shares the data stores (and thus their listeners) with {@link #getDOMDataBroker()}.
+     */
+    public DOMDataBroker getDOMDataBroker(Consistency consistency) {
+        return domDataBrokersByConsistency.get(consistency);
+    }
+
+    /**
+     * Open a read-only transaction with the given consistency level, without blocking the caller
+     * until the revision which that requires has been applied locally.
+     *
+     * <p>The returned future is completed by the asyncReadExecutor (see constructor), never by the thread which
+     * applies watch events, so callbacks chained to it may block, e.g. to open another read-only transaction.
+     * It fails with a {@link TimeoutException} if the revision is not applied within the same time which
+     * the blocking {@link DOMDataBroker#newReadOnlyTransaction()} waits at most.
+     */
+    public CompletionStage<DOMDataTreeReadTransaction> newReadOnlyTransactionAsync(Consistency consistency) {
+        // Both data stores share the RevAwaiter, so once one has applied a revision, the other has as well;
+        // except for the SESSION revisions, which each data store tracks for its own transactions.
+        CompletionStage<Void> awaited = consistency == Consistency.SESSION
+                ? configDS.awaitAsync(consistency).thenCombine(operDS.awaitAsync(consistency), (config, oper) -> null)
+                : configDS.awaitAsync(consistency);
+        // Async, because awaited completes on the thread which applies watch events, or on a gRPC thread
+        CompletableFuture<DOMDataTreeReadTransaction> future = awaited.thenApplyAsync(
+            applied -> domDataBrokersByConsistency.get(Consistency.LOCAL).newReadOnlyTransaction(),
+            asyncReadExecutor).toCompletableFuture();
+        ScheduledFuture<?> timeout = asyncReadTimeoutExecutor.schedule(() -> asyncReadExecutor.execute(
+            () -> future.completeExceptionally(new TimeoutException(
+                    name + " newReadOnlyTransactionAsync " + consistency + " timed out"))),
+            EtcdDataStore.AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        future.whenComplete((transaction, throwable) -> timeout.cancel(false));
+        return future;
+    }
+
     public TestTool getTestTool() {
         return etcdWatcherConsumer;
     }
@@ -133,7 +397,8 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
             ExecutorService dataTreeChangeListenerExecutor, DOMSchemaService schemaService) {
         EtcdDataStore store = new EtcdDataStore(name, type, dataTreeChangeListenerExecutor,
                 InMemoryDOMDataStoreConfigProperties.DEFAULT_MAX_DATA_CHANGE_LISTENER_QUEUE_SIZE, etcdClient, true,
-                revAwaiter);
+                revAwaiter, groupCommitter, revisionOracle, qnameDictionary,
+                granularity, defaultConsistency, maxStaleness);
         schemaService.registerSchemaContextListener(store);
         return store;
     }
@@ -7,33 +7,58 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
-import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.TxnResponse;
 import io.etcd.jetcd.watch.WatchEvent;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedKeyValue;
 import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
 import org.opendaylight.etcd.ds.inmemory.copypaste.InMemoryDOMDataStore;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.SnapshotBackedWriteTransaction;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidate;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidateNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataValidationFailedException;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.ModificationType;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
 import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,113 +77,284 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
     public static final ByteSequence CONFIGURATION_PREFIX = ByteSequences.append(BASE_PREFIX, (byte) 'C'); // 67
     public static final ByteSequence OPERATIONAL_PREFIX   = ByteSequences.append(BASE_PREFIX, (byte) 'O'); // 79
 
-    // This flag could later be dynamic instead of fixed hard-coded, to optionally
-    // support very fast reads with eventual instead of strong consistency.  We could do this either
-    // globally and have different data stores (and, ultimately DataBroker), or per transaction.
-    private final boolean isStronglyConsistent = true;
+    public static final Duration DEFAULT_MAX_STALENESS = Duration.ofMillis(100);
+
+    // max. time (in milliseconds) new transactions wait for the local application of the revision they need
+    // TODO remove the *10 here again?  It was because of a doubt on early testing.
+    static final long AWAIT_TIMEOUT_MS = EtcdYangKV.TIMEOUT_MS * 10;
+
+    private static final CompletionStage<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private final Consistency defaultConsistency;
+    private final Duration maxStaleness;
 
     private final EtcdYangKV kv;
-    private final KV kvClient;
+    private final EtcdServerRevisionOracle revisionOracle;
     private final RevAwaiter revAwaiter;
 
+    private static final class WriteTransactionContext {
+        // the etcd revision which the snapshot of the transaction is based on
+        final long baseRevision;
+        // the highest revision committed by the session (thread) which created the transaction
+        final AtomicLong sessionRevision;
+
+        WriteTransactionContext(long baseRevision, AtomicLong sessionRevision) {
+            this.baseRevision = baseRevision;
+            this.sessionRevision = sessionRevision;
+        }
+    }
+
+    // of each (not yet committed) write transaction
+    private final Map<DOMStoreWriteTransaction, WriteTransactionContext> writeTransactionContexts =
+            new MapMaker().weakKeys().makeMap();
+
+    // whether a server revision check is in flight because of refreshAhead()
+    private final AtomicBoolean refreshingAhead = new AtomicBoolean();
+
+    // completes once the etcd Txn of the last commit was sent, see commitToEtcd()
+    @GuardedBy("this")
+    private CompletionStage<Void> previousTxnSent = COMPLETED;
+
+    // the highest revision committed by transactions created by each thread, see Consistency.SESSION
+    private final ThreadLocal<AtomicLong> sessionRevisions = ThreadLocal.withInitial(AtomicLong::new);
+
     private boolean hasSchemaContext = false;
     private final AtomicBoolean isInitialized = new AtomicBoolean(false);
 
     public EtcdDataStore(String name, LogicalDatastoreType type, ExecutorService dataChangeListenerExecutor,
-            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter) {
+            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter,
+            EtcdGroupCommitter groupCommitter, EtcdServerRevisionOracle revisionOracle, QNameDictionary dictionary) {
+        this(name, type, dataChangeListenerExecutor, maxDataChangeListenerQueueSize, client, debugTransactions,
+                revAwaiter, groupCommitter, revisionOracle, dictionary, StorageGranularity.EVERY_NODE,
+                Consistency.STRONG, DEFAULT_MAX_STALENESS);
+    }
+
+    public EtcdDataStore(String name, LogicalDatastoreType type, ExecutorService dataChangeListenerExecutor,
+            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter,
+            EtcdGroupCommitter groupCommitter, EtcdServerRevisionOracle revisionOracle, QNameDictionary dictionary,
+            StorageGranularity granularity, Consistency defaultConsistency, Duration maxStaleness) {
         // TODO InMemoryDOMDataStore creates the DataTree with a hard-coded DataTreeConfiguration, instead of by type
         super(name + "-" + prefixChar(type), dataChangeListenerExecutor, maxDataChangeListenerQueueSize,
                 debugTransactions);
 
         this.revAwaiter = revAwaiter;
-        this.kvClient = client.getKVClient();
+        this.revisionOracle = requireNonNull(revisionOracle, "revisionOracle");
+        this.defaultConsistency = requireNonNull(defaultConsistency, "defaultConsistency");
+        this.maxStaleness = requireNonNull(maxStaleness, "maxStaleness");
 
-        kv = new EtcdYangKV(getIdentifier(), client, prefix(type));
+        kv = new EtcdYangKV(getIdentifier(), client, prefix(type), groupCommitter, dictionary, granularity);
     }
 
     @Override
     @SuppressWarnings("checkstyle:MissingSwitchDefault") // conflicts with http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
     public void accept(List<WatchEvent> events) throws EtcdException {
         isInitialized();
+
+        // decode (in parallel) before, instead of while, applying the events (sequentially)
+        List<DecodedKeyValue> keyValues = new ArrayList<>(events.size());
+        for (WatchEvent watchEvent : events) {
+            KeyValue keyValue = watchEvent.getKeyValue();
+            switch (watchEvent.getEventType()) {
+                case PUT:
+                    keyValues.add(new DecodedKeyValue(keyValue.getKey(), keyValue.getValue()));
+                    break;
+
+                case DELETE:
+                    keyValues.add(new DecodedKeyValue(keyValue.getKey(), null));
+                    break;
+
+                case UNRECOGNIZED:
+                    LOG.warn("{} UNRECOGNIZED watch event: {}", getIdentifier(), KeyValues.toStringable(keyValue));
+                    break;
+
+                // no default, as error-prone has error checking for non-exhaustive switches
+            }
+        }
+        kv.decodeAll(keyValues);
+
         apply(mod -> {
-            for (WatchEvent watchEvent : events) {
-                switch (watchEvent.getEventType()) {
-                    case PUT:
-                        KeyValue keyValue = watchEvent.getKeyValue();
-                        kv.applyPut(mod, keyValue.getKey(), keyValue.getValue());
-                        break;
-
-                    case DELETE:
-                        kv.applyDelete(mod, watchEvent.getKeyValue().getKey());
-                        break;
-
-                    case UNRECOGNIZED:
-                        LOG.warn("{} UNRECOGNIZED watch event: {}", getIdentifier(),
-                                KeyValues.toStringable(watchEvent.getKeyValue()));
-                        break;
-
-                    // no default, as error-prone has error checking for non-exhaustive switches
+            // A subtree (range) delete causes a DELETE event for each key, in key order, so parents first;
+            // deleting the parent from the DataTree already deleted its children, so we skip those events.
+            List<ByteSequence> deletedPrefixes = new ArrayList<>();
+            ValueChunks.Assembler chunks = new ValueChunks.Assembler();
+            for (DecodedKeyValue keyValue : keyValues) {
+                if (keyValue.value != null) {
+                    kv.applyPut(mod, keyValue, chunks);
+                    // a later event could be for a re-created node under a previously deleted one
+                    deletedPrefixes.clear();
+                } else if (!isUnderAny(keyValue.key, deletedPrefixes)) {
+                    kv.applyDelete(mod, keyValue);
+                    deletedPrefixes.add(keyValue.key);
                 }
             }
+            // all chunks of a value are put in the same Txn, and thus arrive in the same batch of events
+            chunks.checkComplete();
         });
     }
 
+    private static boolean isUnderAny(ByteSequence key, List<ByteSequence> prefixes) {
+        for (ByteSequence prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public DOMStoreReadTransaction newReadOnlyTransaction() {
+        return newReadOnlyTransaction(defaultConsistency);
+    }
+
+    public DOMStoreReadTransaction newReadOnlyTransaction(Consistency consistency) {
         isInitialized();
-        await();
+        await(consistency);
         return super.newReadOnlyTransaction();
     }
 
+    /**
+     * Obtain a view of this data store whose read-only transactions use another consistency level.
+     * Read-write transactions always await the etcd server's current revision, and
+     * write-only transactions never do (their commits are guarded by compares instead).
+     */
+    public DOMStore withConsistency(Consistency consistency) {
+        return consistency.equals(defaultConsistency) ? this : new EtcdDataStoreConsistencyView(this, consistency);
+    }
+
     @Override
     public DOMStoreReadWriteTransaction newReadWriteTransaction() {
         isInitialized();
+        // the reads of this transaction are not guarded by compares on commit, so they have to be up-to-date
         await();
-        return super.newReadWriteTransaction();
+        long baseRevision = revAwaiter.getCurrentRev();
+        return registerBaseRevision(baseRevision, super.newReadWriteTransaction());
     }
 
     @Override
     public DOMStoreWriteTransaction newWriteOnlyTransaction() {
         isInitialized();
-        // TODO discuss with others if this makes sense, or could indeed be optimized?
-        // It could be tempting to NOT await() for a newWriteOnlyTransaction(),
-        // but the data validation on commit needs up-to-date data, so we do.
-        await();
-        return super.newWriteOnlyTransaction();
+        // We do NOT await() the server here; if the snapshot is stale, then the commit of any keys which were
+        // modified since its base revision fails with an OptimisticLockFailedException.  But we do await the
+        // revisions committed by this thread itself (which needs no round trip to the etcd server), because
+        // else a transaction following the thread's own commit would (mostly) fail like that.
+        await(Consistency.SESSION);
+        long baseRevision = revAwaiter.getCurrentRev();
+        return registerBaseRevision(baseRevision, super.newWriteOnlyTransaction());
+    }
+
+    private <T extends DOMStoreWriteTransaction> T registerBaseRevision(long baseRevision, T transaction) {
+        // The revision is read BEFORE the snapshot is taken (by our caller's super.new*Transaction()),
+        // so the snapshot includes at least this revision; if it includes more, a commit may fail
+        // with a conflict that wasn't really one, but it never succeeds when it should not.
+        writeTransactionContexts.put(transaction,
+                new WriteTransactionContext(baseRevision, sessionRevisions.get()));
+        return transaction;
     }
 
     private void await() {
-        if (isStronglyConsistent) {
-            long expectedRev;
-            try {
-                expectedRev = EtcdServerUtils.getServerRevision(kvClient);
-            } catch (EtcdException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await getServerRevision() failed", e);
-            }
+        await(Consistency.STRONG);
+    }
 
-            try {
-                // TODO remove the *10 here again?  It was because of a doubt on early testing.
-                revAwaiter.await(expectedRev, Duration.ofMillis(EtcdYangKV.TIMEOUT_MS * 10));
-            } catch (TimeoutException | InterruptedException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await revision failed: " + expectedRev, e);
-            }
+    private void await(Consistency consistency) {
+        try {
+            awaitAsync(consistency).toCompletableFuture().get(AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | InterruptedException e) {
+            throw new EtcdRuntimeException(getIdentifier() + " await " + consistency + " failed", e);
         }
     }
 
+    /**
+     * Await, without blocking, the local application of the revision required for a read-only
+     * transaction with the given consistency level.  Once the returned future completes,
+     * read-only transactions with {@link Consistency#LOCAL} have that consistency level.
+     *
+     * <p>NB: The returned future is typically completed by the thread which applies watch events, or a gRPC thread,
+     * so anything chained to it which may block must be async on another executor (see
+     * {@link EtcdDOMDataBrokerProvider#newReadOnlyTransactionAsync(Consistency)}).
+     */
+    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    CompletionStage<Void> awaitAsync(Consistency consistency) {
+        isInitialized();
+        switch (consistency) {
+            case STRONG:
+                return awaitServerRevisionAsync();
+
+            case BOUNDED_STALENESS:
+                if (!revAwaiter.isFresherThan(maxStaleness)) {
+                    return awaitServerRevisionAsync();
+                }
+                if (!revAwaiter.isFresherThan(maxStaleness.dividedBy(2))) {
+                    // etcd only sends watch progress notifications every 10 minutes by default, so (unless that
+                    // was configured much shorter) we ask ahead, so that reads under steady load never wait for it
+                    refreshAhead();
+                }
+                return COMPLETED;
+
+            case SESSION:
+                return revAwaiter.awaitAsync(sessionRevisions.get().get());
+
+            case LOCAL:
+                // serve straight from the local DataTree, however stale it may be
+                return COMPLETED;
+
+            // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+        }
+        throw new IllegalArgumentException(consistency.toString());
+    }
+
+    private void refreshAhead() {
+        if (refreshingAhead.compareAndSet(false, true)) {
+            awaitServerRevisionAsync().whenComplete((result, throwable) -> {
+                refreshingAhead.set(false);
+                if (throwable != null) {
+                    LOG.debug("{} refreshing ahead failed (next read will retry)", getIdentifier(), throwable);
+                }
+            });
+        }
+    }
+
+    private CompletionStage<Void> awaitServerRevisionAsync() {
+        // taken BEFORE asking, because the server revision is only known to be current as of when we asked
+        long askedNanos = System.nanoTime();
+        return revisionOracle.getServerRevisionAsync()
+                .thenCompose(revAwaiter::awaitAsync)
+                .thenRun(() -> revAwaiter.confirmed(askedNanos));
+    }
+
     @Override
     public synchronized void onGlobalContextUpdated(SchemaContext ctx) {
         super.onGlobalContextUpdated(ctx);
+        kv.setSchemaContext(ctx);
         this.hasSchemaContext = true;
     }
 
-    public void init(long rev) throws Exception {
+    public void init(long rev, byte formatVersion) throws Exception {
+        init(rev, formatVersion, null);
+    }
+
+    /**
+     * Initialize, with the content from a local snapshot taken at the given revision, if there is one, instead
+     * of reading it all back from etcd.  If the snapshot cannot be applied (e.g. because the schema changed since
+     * it was taken), then the content is still read back from etcd, at the same revision.
+     */
+    void init(long rev, byte formatVersion, @Nullable NormalizedNode<?, ?> snapshotRoot) throws Exception {
         if (!hasSchemaContext) {
             throw new IllegalStateException("onGlobalContextUpdated() not yet called");
         }
-        initialLoad(rev);
+        kv.setFormatVersion(formatVersion);
+        if (snapshotRoot == null || !snapshotLoad(rev, snapshotRoot)) {
+            initialLoad(rev);
+        }
         this.isInitialized.set(true);
     }
 
+    /**
+     * The current content of this data store, for a local snapshot.
+     */
+    Optional<NormalizedNode<?, ?>> readRoot() {
+        return dataTree.takeSnapshot().readNode(YangInstanceIdentifier.EMPTY);
+    }
+
     @Override
     public void close() {
         kv.close();
@@ -181,6 +377,45 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         apply(mod -> kv.readAllInto(rev, mod));
     }
 
+    /**
+     * Bring the content up to date with etcd at the given revision, after watching it could not catch up with
+     * the changes since the last applied revision (because etcd compacted them away).  Only what differs from
+     * the current content is written, so listeners are only notified about what actually changed.
+     * @param rev the etcd Revision number to load
+     * @throws EtcdException if loading failed
+     */
+    void resync(long rev) throws EtcdException {
+        NormalizedNode<?, ?> before = readRoot().orElseThrow(() -> new EtcdException("DataTree has no root"));
+        DataTreeModification reload = dataTree.takeSnapshot().newModification();
+        reload.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME));
+        kv.readAllInto(rev, reload);
+        NormalizedNode<?, ?> after = reload.readNode(YangInstanceIdentifier.EMPTY)
+                .orElseThrow(() -> new EtcdException("DataTreeModification has no root"));
+
+        AtomicInteger differences = new AtomicInteger();
+        apply(mod -> differences.set(
+                NormalizedNodeDiff.writeDifferences(mod, YangInstanceIdentifier.EMPTY, before, after)));
+        LOG.info("{} resynced with etcd at revision {}, {} nodes differed", getIdentifier(), rev, differences);
+    }
+
+    private boolean snapshotLoad(long rev, NormalizedNode<?, ?> snapshotRoot) {
+        try {
+            apply(mod -> {
+                try {
+                    mod.write(YangInstanceIdentifier.EMPTY, snapshotRoot);
+                } catch (IllegalArgumentException e) {
+                    throw new EtcdException("snapshot does not match the schema", e);
+                }
+            });
+            LOG.info("{} loaded local snapshot of revision {}", getIdentifier(), rev);
+            return true;
+        } catch (EtcdException e) {
+            LOG.warn("{} could not load local snapshot of revision {}, reading it from etcd instead",
+                    getIdentifier(), rev, e);
+            return false;
+        }
+    }
+
     private void apply(CheckedConsumer<DataTreeModification, EtcdException> function) throws EtcdException {
         // TODO requires https://git.opendaylight.org/gerrit/#/c/73482/ which makes dataTree protected instead of private
         DataTreeModification mod = dataTree.takeSnapshot().newModification();
@@ -203,7 +438,23 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
 
     @Override
     // requires https://git.opendaylight.org/gerrit/#/c/73208/ :-( or figure out if we can hook into InMemoryDOMDataStore via a commit cohort?!
-    protected synchronized void commit(DataTreeCandidate candidate) {
+    protected ListenableFuture<Void> commit(SnapshotBackedWriteTransaction<String> transaction,
+            DataTreeCandidate candidate) {
+        // Transactions of a DOMStoreTransactionChain have no context, so their commits are not guarded,
+        // and do not count for the session (of the thread which created the chain) either
+        WriteTransactionContext context = writeTransactionContexts.remove(transaction);
+        return context != null
+                ? commitToEtcd(OptionalLong.of(context.baseRevision), context.sessionRevision, candidate)
+                : commit(candidate);
+    }
+
+    @Override
+    protected ListenableFuture<Void> commit(DataTreeCandidate candidate) {
+        return commitToEtcd(OptionalLong.empty(), null, candidate);
+    }
+
+    private synchronized ListenableFuture<Void> commitToEtcd(OptionalLong baseRevision,
+            @Nullable AtomicLong sessionRevision, DataTreeCandidate candidate) {
         isInitialized();
         if (!candidate.getRootPath().equals(YangInstanceIdentifier.EMPTY)) {
             LOG.error("DataTreeCandidate: YangInstanceIdentifier path={}", candidate.getRootPath());
@@ -214,22 +465,28 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         LOG.info("{} commit: DataTreeCandidate={}", getIdentifier(), candidate);
         print("", candidate.getRootNode());
 
-        // TODO make InMemoryDOMDataStore.commit(DataTreeCandidate) return ListenableFuture<Void> instead of void,
-        // and then InMemoryDOMStoreThreePhaseCommitCohort.commit() return store.commit(candidate) instead of SUCCESS,
-        // and then do this:
-//        sendToEtcd(candidate.getRootNode()).thenRun(() -> super.commit(candidate)).exceptionally(throwable -> {
-//            LOG.error("sendToEtcd failed", throwable);
-//            return null;
-//        });
-        // but for now let's throw the entire nice async-ity over board and just do:
-        try {
-            EtcdTxn kvTx = kv.newTransaction();
-            sendToEtcd(kvTx, candidate, candidate.getRootPath(), candidate.getRootNode());
-            kvTx.commit().toCompletableFuture().get();
-        } catch (EtcdException | IllegalArgumentException | InterruptedException | ExecutionException e) {
-            // TODO This is ugly, wrong, and just temporary.. but see above, how to better return problems here?
-            throw new RuntimeException(e);
-        }
+        // This method is synchronized only so that the etcd Txns are sent in the same order as the commits;
+        // we intentionally do NOT block here until etcd has replied, but return a future which completes when it has.
+        // Nor do we block allocating QNames which are new to the dictionary in etcd; that is done first, and
+        // each Txn is only sent after the previous one was (which normally is immediately, in this same thread).
+        SettableFuture<Void> commitFuture = SettableFuture.create();
+        CompletionStage<Void> previous = previousTxnSent;
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        previousTxnSent = sent;
+        CompletionStage<Void> qnamesAllocated = kv.allocateQNames(candidate.getRootNode());
+        previous.thenCompose(ignored -> qnamesAllocated).whenComplete((ignored, throwable) -> {
+            try {
+                if (throwable != null) {
+                    commitFuture.setException(new TransactionCommitFailedException(
+                            getIdentifier() + " allocating QName codes failed", throwable));
+                } else {
+                    sendToEtcd(baseRevision, sessionRevision, candidate, commitFuture);
+                }
+            } finally {
+                sent.complete(null);
+            }
+        });
+        return commitFuture;
 
         // We do *NOT* super.commit(candidate), because we don't want to immediately/directly apply changes,
         // because we let the watcher listener do this - for ourselves here where we initiated the change, as well as
@@ -240,26 +497,90 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         // see also https://github.com/coreos/jetcd/issues/343.
     }
 
+    private void sendToEtcd(OptionalLong baseRevision, @Nullable AtomicLong sessionRevision,
+            DataTreeCandidate candidate, SettableFuture<Void> commitFuture) {
+        CompletionStage<TxnResponse> txnResponseFuture;
+        try {
+            EtcdTxn kvTx = kv.newTransaction(baseRevision);
+            sendToEtcd(kvTx, candidate.getRootPath(), kv.toByteSequence(candidate.getRootPath()),
+                    candidate.getRootNode());
+            txnResponseFuture = kvTx.commit();
+        } catch (EtcdException | IllegalArgumentException e) {
+            commitFuture.setException(
+                    new TransactionCommitFailedException(getIdentifier() + " preparing etcd Txn failed", e));
+            return;
+        }
+
+        txnResponseFuture.whenComplete((txnResponse, throwable) -> {
+            if (throwable != null) {
+                LOG.error("{} etcd Txn commit failed", getIdentifier(), throwable);
+                commitFuture.setException(
+                        new TransactionCommitFailedException(getIdentifier() + " etcd Txn commit failed", throwable));
+            } else if (!txnResponse.isSucceeded()) {
+                LOG.info("{} etcd Txn based on revision {} conflicted with a later change", getIdentifier(),
+                        baseRevision.getAsLong());
+                commitFuture.setException(new OptimisticLockFailedException(getIdentifier()
+                        + " etcd Txn failed, because data was modified since revision " + baseRevision.getAsLong()));
+            } else {
+                // BEFORE completing the future, so that the session's next transaction sees it
+                if (sessionRevision != null) {
+                    sessionRevision.accumulateAndGet(txnResponse.getHeader().getRevision(), Math::max);
+                }
+                commitFuture.set(null);
+            }
+        });
+    }
+
     @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
-    private void sendToEtcd(EtcdTxn kvTx, DataTreeCandidate candidate, YangInstanceIdentifier base,
+    /**
+     * Send the changes of the node, and (recursively) its children, to etcd.
+     * The key of each child is built by appending its path argument to the key of its parent,
+     * instead of encoding its entire path again; see EtcdYangKV#toChildByteSequence().
+     * The leaf children of a node which is stored including them (see {@link StorageGranularity}) are not sent
+     * on their own; instead, the node is sent again if any of them changed.  Structural nodes with children are not
+     * sent at all, if they are elided (see {@link StorageGranularity#isElidingStructuralNodes()}), and are deleted
+     * together with their last child.
+     */
+    private void sendToEtcd(EtcdTxn kvTx, YangInstanceIdentifier path, ByteSequence key,
             DataTreeCandidateNode node) throws IllegalArgumentException, EtcdException {
-        YangInstanceIdentifier newBase = candidate.getRootNode().equals(node) ? base : base.node(node.getIdentifier());
 
+        boolean isAggregatingLeaves = kv.isAggregatingLeaves(path,
+                node.getDataAfter().orElse(node.getDataBefore().orElse(null)));
         ModificationType modificationType = node.getModificationType();
         switch (modificationType) {
             case WRITE:
             case APPEARED: // TODO is it right to treat APPEARED like WRITE here?
-                kvTx.put(newBase,
-                        node.getDataAfter().orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node)));
+                NormalizedNode<?, ?> dataAfter =
+                        node.getDataAfter().orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node));
+                if (!kv.isElided(path, dataAfter)) {
+                    kvTx.put(path, key, dataAfter, node.getDataBefore().orElse(null));
+                }
                 break;
 
             case DELETE:
             case DISAPPEARED: // TODO is it right to treat DISAPPEARED like DELETE here?
-                kvTx.delete(newBase);
+                // this deletes the entire subtree, so there is no need to walk the child nodes
+                kvTx.delete(key);
+                return;
+
+            case SUBTREE_MODIFIED:
+                if (node.getDataAfter().isPresent() && kv.isEmptyStructural(path, node.getDataAfter().get())) {
+                    // its last child was removed; its own key (if it has one) must go as well, see isEmptyStructural()
+                    kvTx.delete(key);
+                    return;
+                }
+                if (isAggregatingLeaves && hasModifiedLeafChild(node)) {
+                    kvTx.put(path, key, node.getDataAfter()
+                            .orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node)),
+                            node.getDataBefore().orElse(null));
+                } else {
+                    // so that its modified descendants are not written below it, if it was concurrently deleted
+                    kvTx.requireExisting(path, key, node.getDataBefore()
+                            .orElseThrow(() -> new IllegalArgumentException("No dataBefore: " + node)));
+                }
                 break;
 
             case UNMODIFIED:
-            case SUBTREE_MODIFIED:
                 // ignore
                 break;
 
@@ -267,8 +588,27 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         }
 
         for (DataTreeCandidateNode childNode : node.getChildNodes()) {
-            sendToEtcd(kvTx, candidate, newBase, childNode);
+            if (isAggregatingLeaves && isLeaf(childNode)) {
+                // already included in the value of this node
+                continue;
+            }
+            PathArgument childPathArgument = childNode.getIdentifier();
+            sendToEtcd(kvTx, path.node(childPathArgument), kv.toChildByteSequence(key, childPathArgument),
+                    childNode);
+        }
+    }
+
+    private static boolean hasModifiedLeafChild(DataTreeCandidateNode node) {
+        for (DataTreeCandidateNode childNode : node.getChildNodes()) {
+            if (childNode.getModificationType() != ModificationType.UNMODIFIED && isLeaf(childNode)) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    private static boolean isLeaf(DataTreeCandidateNode node) {
+        return node.getDataAfter().orElse(node.getDataBefore().orElse(null)) instanceof LeafNode;
     }
 
     private void print(String indent, DataTreeCandidateNode node) {
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import org.opendaylight.mdsal.dom.api.DOMDataTreeChangeListener;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransactionChain;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTreeChangePublisher;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+
+/**
+ * View of an {@link EtcdDataStore} whose read-only transactions use a given {@link Consistency}.
+ * This lets a DOMDataBroker offer a consistency level other than the data store's default.
+ */
+// intentionally just .impl package-local, for now
+class EtcdDataStoreConsistencyView implements DOMStore, DOMStoreTreeChangePublisher {
+
+    private final EtcdDataStore store;
+    private final Consistency consistency;
+
+    EtcdDataStoreConsistencyView(EtcdDataStore store, Consistency consistency) {
+        this.store = requireNonNull(store, "store");
+        this.consistency = requireNonNull(consistency, "consistency");
+    }
+
+    @Override
+    public DOMStoreReadTransaction newReadOnlyTransaction() {
+        return store.newReadOnlyTransaction(consistency);
+    }
+
+    @Override
+    public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+        return store.newWriteOnlyTransaction();
+    }
+
+    @Override
+    public DOMStoreReadWriteTransaction newReadWriteTransaction() {
+        return store.newReadWriteTransaction();
+    }
+
+    @Override
+    public DOMStoreTransactionChain createTransactionChain() {
+        return store.createTransactionChain();
+    }
+
+    @Override
+    public <L extends DOMDataTreeChangeListener> ListenerRegistration<L> registerTreeChangeListener(
+            YangInstanceIdentifier treeId, L listener) {
+        return store.registerTreeChangeListener(treeId, listener);
+    }
+
+    @Override
+    public String toString() {
+        return store.getIdentifier() + "-" + consistency;
+    }
+}
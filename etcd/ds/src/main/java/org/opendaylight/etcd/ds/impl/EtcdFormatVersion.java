@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static org.opendaylight.etcd.ds.impl.EtcdServerUtils.await;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import java.util.List;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Version of the format of the values stored in etcd.  This is stored once, globally, in etcd (instead of
+ * in every value, see ShallowNormalizedNodeDataOutputWriter#ensureHeaderWritten()).  The first node started
+ * on an empty etcd sets it to the {@link #CURRENT} version; nodes never write values in a format newer than it,
+ * and refuse to start if it's newer than what they can read.
+ *
+ * <p>NB: There is no upgrade path from data written before this version was stored in etcd: the encoding of
+ * keys (with each node's key a prefix of its descendants' keys) and of QNames (as codes from the QNameDictionary)
+ * changed incompatibly since then, so even {@link #SHALLOW} values cannot be read by such older nodes, nor can
+ * their data be read by newer ones.  Such data has to be exported and re-imported (e.g. using DAEXIM).
+ */
+// intentionally just .impl package-local, for now
+final class EtcdFormatVersion {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdFormatVersion.class);
+
+    static final ByteSequence KEY = ByteSequences.append(EtcdDataStore.BASE_PREFIX, (byte) 'V'); // 86
+
+    /**
+     * All values are written by the ShallowNormalizedNodeDataOutputWriter.
+     */
+    static final byte SHALLOW = 1;
+
+    /**
+     * Leaf values are written by the SchemaAwareValueCodec, if it supports their type.
+     */
+    static final byte SCHEMA_AWARE = 2;
+
+    /**
+     * Values larger than a threshold may be compressed, see ValueCompression.
+     */
+    static final byte COMPRESSED = 3;
+
+    /**
+     * Values too large for a single etcd key may be split into chunks under several keys, see ValueChunks.
+     */
+    static final byte CHUNKED = 4;
+
+    static final byte CURRENT = CHUNKED;
+
+    private EtcdFormatVersion() { }
+
+    /**
+     * Obtain the format version from etcd, setting it to {@link #CURRENT} if it is not set yet.
+     */
+    static byte init(String name, KV etcd) throws EtcdException {
+        TxnResponse response = await(etcd.txn()
+                .If(new Cmp(KEY, Cmp.Op.EQUAL, CmpTarget.version(0)))
+                .Then(Op.put(KEY, ByteSequences.fromBytes(CURRENT), PutOption.DEFAULT))
+                .Else(Op.get(KEY, GetOption.DEFAULT))
+                .commit());
+        if (response.isSucceeded()) {
+            LOG.info("{} initialized format version to {}", name, CURRENT);
+            return CURRENT;
+        }
+
+        List<KeyValue> kvs = response.getGetResponses().get(0).getKvs();
+        if (kvs.isEmpty() || kvs.get(0).getValue().size() != 1) {
+            throw new EtcdException("Invalid format version in etcd: " + kvs);
+        }
+        byte version = kvs.get(0).getValue().getBytes()[0];
+        if (version > CURRENT) {
+            throw new EtcdException("Format version in etcd is " + version + ", but we only support up to " + CURRENT);
+        }
+        LOG.info("{} using format version {}", name, version);
+        return version;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.Op;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.CheckReturnValue;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit stage in front of etcd, which coalesces concurrently committed transactions into a single etcd Txn.
+ *
+ * <p>This is adaptive: While no Txn is in flight, a commit is sent to etcd immediately, so there is no added
+ * latency under light load.  While a Txn is in flight, further commits are queued, and when it completes they are
+ * sent together, in order, as one Txn - up to the maximum number of operations etcd accepts per Txn, and up to a
+ * maximum number of bytes of their keys and values, below the maximum size of a request etcd accepts.  A commit
+ * touching a key already touched by an earlier commit of the same group (or within a range it deletes, or vice versa)
+ * starts a new group, because etcd rejects Txns with duplicate keys.
+ *
+ * <p>The compares of all commits of a group guard the group's Txn.  If that Txn does not succeed because
+ * any compare failed, or fails altogether (e.g. because the request was still too large), then its commits are
+ * sent again one by one, so that only the conflicting (or failing) ones fail.
+ *
+ * <p>The compares of a commit may only become known asynchronously (see {@link EtcdYangKV.EtcdTxn#commit()}); the
+ * commits queued up behind such a commit then wait for it, so that commits are always sent in the order made.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdGroupCommitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdGroupCommitter.class);
+
+    // see etcd's --max-txn-ops (default 128)
+    static final int DEFAULT_MAX_OPS_PER_TXN = 128;
+
+    // see etcd's --max-request-bytes (default 1.5 MiB); this leaves room for the compares and the request overhead
+    static final long DEFAULT_MAX_BYTES_PER_TXN = 1024 * 1024;
+
+    // 1 preserves the commit order; more would pipeline, but etcd may then apply the Txns out of order
+    static final int DEFAULT_MAX_TXNS_IN_FLIGHT = 1;
+
+    private static class PendingCommit {
+        final CompletableFuture<List<Cmp>> cmps;
+        final List<Op> ops;
+        final long bytes;
+        final Set<ByteSequence> keys;
+        final Set<ByteSequence> prefixes;
+        final CompletableFuture<TxnResponse> future = new CompletableFuture<>();
+        boolean sendAlone;
+
+        PendingCommit(CompletionStage<List<Cmp>> cmps, List<Op> ops, long bytes, Set<ByteSequence> keys,
+                Set<ByteSequence> prefixes) {
+            this.cmps = cmps.toCompletableFuture();
+            this.ops = ops;
+            this.bytes = bytes;
+            this.keys = keys;
+            this.prefixes = prefixes;
+        }
+    }
+
+    private final String name;
+    private final KV etcd;
+    private final int maxOpsPerTxn;
+    private final long maxBytesPerTxn;
+    private final int maxTxnsInFlight;
+
+    @GuardedBy("this")
+    private final Deque<PendingCommit> pendingCommits = new ArrayDeque<>();
+
+    @GuardedBy("this")
+    private int txnsInFlight;
+
+    EtcdGroupCommitter(String name, KV etcd) {
+        this(name, etcd, DEFAULT_MAX_OPS_PER_TXN, DEFAULT_MAX_BYTES_PER_TXN, DEFAULT_MAX_TXNS_IN_FLIGHT);
+    }
+
+    EtcdGroupCommitter(String name, KV etcd, int maxOpsPerTxn, long maxBytesPerTxn, int maxTxnsInFlight) {
+        Preconditions.checkArgument(maxOpsPerTxn > 0, "maxOpsPerTxn must be > 0: %s", maxOpsPerTxn);
+        Preconditions.checkArgument(maxBytesPerTxn > 0, "maxBytesPerTxn must be > 0: %s", maxBytesPerTxn);
+        Preconditions.checkArgument(maxTxnsInFlight > 0, "maxTxnsInFlight must be > 0: %s", maxTxnsInFlight);
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+        this.maxOpsPerTxn = maxOpsPerTxn;
+        this.maxBytesPerTxn = maxBytesPerTxn;
+        this.maxTxnsInFlight = maxTxnsInFlight;
+    }
+
+    /**
+     * Commit operations to etcd, possibly together with others.
+     *
+     * @param cmps the compares which must all hold for the operations to be applied
+     * @param ops the operations of one transaction, which will all be applied atomically
+     * @param bytes the number of bytes of the keys and values of the operations
+     * @param keys the keys which the operations touch
+     * @param prefixes the prefixes of the key ranges which the operations delete
+     * @return future of the response of the etcd Txn which included the operations;
+     *         it is not {@link TxnResponse#isSucceeded()} if any of the compares failed
+     */
+    @CheckReturnValue
+    CompletionStage<TxnResponse> commit(List<Cmp> cmps, List<Op> ops, long bytes, Set<ByteSequence> keys,
+            Set<ByteSequence> prefixes) {
+        return commit(CompletableFuture.completedFuture(cmps), ops, bytes, keys, prefixes);
+    }
+
+    /**
+     * Commit operations to etcd, possibly together with others, once their compares are known.  Commits made
+     * after this one are not sent before it, even if their compares are known earlier.
+     *
+     * @param cmps future of the compares which must all hold for the operations to be applied; if it fails,
+     *        then the returned future fails as well, and nothing is sent
+     * @see #commit(List, List, long, Set, Set)
+     */
+    @CheckReturnValue
+    CompletionStage<TxnResponse> commit(CompletionStage<List<Cmp>> cmps, List<Op> ops, long bytes,
+            Set<ByteSequence> keys, Set<ByteSequence> prefixes) {
+        PendingCommit pendingCommit = new PendingCommit(cmps, ops, bytes, keys, prefixes);
+        synchronized (this) {
+            pendingCommits.add(pendingCommit);
+        }
+        pendingCommit.cmps.whenComplete((ignoredCmps, ignoredThrowable) -> sendNextGroups());
+        return pendingCommit.future;
+    }
+
+    private void sendNextGroups() {
+        while (true) {
+            List<PendingCommit> group;
+            synchronized (this) {
+                if (txnsInFlight >= maxTxnsInFlight || pendingCommits.isEmpty()) {
+                    return;
+                }
+                group = nextGroup();
+                if (group.isEmpty()) {
+                    return;
+                }
+                txnsInFlight++;
+            }
+            send(group);
+        }
+    }
+
+    @GuardedBy("this")
+    private List<PendingCommit> nextGroup() {
+        List<PendingCommit> group = new ArrayList<>();
+        Set<ByteSequence> groupKeys = new HashSet<>();
+        Set<ByteSequence> groupPrefixes = new HashSet<>();
+        @Var int groupOps = 0;
+        @Var long groupBytes = 0;
+        while (!pendingCommits.isEmpty()) {
+            PendingCommit next = pendingCommits.peek();
+            // the commits after one whose compares are not known yet must wait for it, to keep them in order
+            if (!next.cmps.isDone()) {
+                break;
+            }
+            if (next.cmps.isCompletedExceptionally()) {
+                // it's sent alone, which just fails it, see send()
+                next.sendAlone = true;
+            }
+            // always take at least one commit, even if it alone has more ops (or bytes) than etcd will accept
+            if (!group.isEmpty() && (next.sendAlone || groupOps + next.ops.size() > maxOpsPerTxn
+                    || groupBytes + next.bytes > maxBytesPerTxn || overlaps(groupKeys, groupPrefixes, next))) {
+                break;
+            }
+            pendingCommits.poll();
+            group.add(next);
+            if (next.sendAlone) {
+                break;
+            }
+            groupKeys.addAll(next.keys);
+            groupPrefixes.addAll(next.prefixes);
+            groupOps += next.ops.size();
+            groupBytes += next.bytes;
+        }
+        return group;
+    }
+
+    private void send(List<PendingCommit> group) {
+        PendingCommit first = group.get(0);
+        if (first.cmps.isCompletedExceptionally()) {
+            first.cmps.whenComplete((ignoredCmps, throwable) -> first.future.completeExceptionally(throwable));
+            synchronized (this) {
+                txnsInFlight--;
+            }
+            sendNextGroups();
+            return;
+        }
+
+        List<Cmp> allCmps = new ArrayList<>();
+        List<Op> allOps = new ArrayList<>();
+        for (PendingCommit pendingCommit : group) {
+            allCmps.addAll(pendingCommit.cmps.join());
+            allOps.addAll(pendingCommit.ops);
+        }
+        LOG.debug("{} sending group of {} transactions with {} compares and {} operations in one etcd Txn",
+                name, group.size(), allCmps.size(), allOps.size());
+
+        etcd.txn().If(allCmps.toArray(new Cmp[allCmps.size()])).Then(allOps.toArray(new Op[allOps.size()])).commit()
+            .whenComplete((txnResponse, throwable) -> {
+                if (group.size() > 1 && (throwable != null || !txnResponse.isSucceeded())) {
+                    if (throwable != null) {
+                        LOG.warn("{} group of {} transactions with {} operations failed, retrying them one by one",
+                                name, group.size(), allOps.size(), throwable);
+                    } else {
+                        LOG.debug("{} group of {} transactions had a conflict, retrying them one by one",
+                                name, group.size());
+                    }
+                    synchronized (this) {
+                        txnsInFlight--;
+                        // in reverse, so that they are put back at the head of the queue in their original order
+                        for (int i = group.size() - 1; i >= 0; i--) {
+                            PendingCommit pendingCommit = group.get(i);
+                            pendingCommit.sendAlone = true;
+                            pendingCommits.addFirst(pendingCommit);
+                        }
+                    }
+                } else {
+                    synchronized (this) {
+                        txnsInFlight--;
+                    }
+                    for (PendingCommit pendingCommit : group) {
+                        if (throwable != null) {
+                            pendingCommit.future.completeExceptionally(throwable);
+                        } else {
+                            pendingCommit.future.complete(txnResponse);
+                        }
+                    }
+                }
+                sendNextGroups();
+            });
+    }
+
+    private static boolean overlaps(Set<ByteSequence> groupKeys, Set<ByteSequence> groupPrefixes,
+            PendingCommit next) {
+        // NB: The prefixes are also in the keys, so this also covers prefixes overlapping each other
+        for (ByteSequence key : next.keys) {
+            if (groupKeys.contains(key) || startsWithAny(key, groupPrefixes)) {
+                return true;
+            }
+        }
+        for (ByteSequence groupKey : groupKeys) {
+            if (startsWithAny(groupKey, next.prefixes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithAny(ByteSequence key, Collection<ByteSequence> prefixes) {
+        for (ByteSequence prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import org.opendaylight.mdsal.common.api.CommitInfo;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeWriteTransaction;
+import org.opendaylight.mdsal.dom.broker.AbstractDOMDataBroker;
+import org.opendaylight.mdsal.dom.broker.SerializedDOMDataBroker;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DOM Data Broker which coordinates the 3PC of transactions without blocking on their outcome.
+ *
+ * <p>Unlike the {@link SerializedDOMDataBroker}, which parks its (single) commit coordinator thread until
+ * each transaction's commit has fully completed, this only uses the executor to start the 3PC of transactions
+ * in the order they were submitted, and then chains the phases on the futures returned by the cohorts.
+ * Because the canCommit and preCommit phases of the {@link EtcdDataStore} complete immediately, and its
+ * commit phase sends the etcd Txn before returning its future, the etcd Txns are still sent in submission
+ * order, but the coordinator no longer waits for a network round trip per transaction.
+ */
+// intentionally just .impl package-local, for now
+class EtcdPipelinedDOMDataBroker extends AbstractDOMDataBroker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdPipelinedDOMDataBroker.class);
+
+    private final Executor executor;
+
+    EtcdPipelinedDOMDataBroker(Map<LogicalDatastoreType, DOMStore> datastores, Executor executor) {
+        super(datastores);
+        this.executor = requireNonNull(executor, "executor");
+    }
+
+    @Override
+    protected FluentFuture<? extends CommitInfo> commit(DOMDataTreeWriteTransaction transaction,
+            Collection<DOMStoreThreePhaseCommitCohort> cohorts) {
+        LOG.debug("Tx: {} is submitted for execution.", transaction.getIdentifier());
+        try {
+            return FluentFuture.from(Futures.submitAsync(() -> coordinate(transaction, cohorts), executor));
+        } catch (RejectedExecutionException e) {
+            LOG.error("The commit executor's queue is full - submit task was rejected. \n{}", executor, e);
+            return FluentFuture.from(Futures.immediateFailedFuture(new TransactionCommitFailedException(
+                    "Could not submit the commit task - the commit queue capacity has been exceeded.", e)));
+        }
+    }
+
+    private ListenableFuture<CommitInfo> coordinate(DOMDataTreeWriteTransaction transaction,
+            Collection<DOMStoreThreePhaseCommitCohort> cohorts) {
+        ListenableFuture<CommitInfo> future =
+            Futures.transformAsync(allOf(cohorts, DOMStoreThreePhaseCommitCohort::canCommit), canCommits -> {
+                for (Boolean canCommit : canCommits) {
+                    if (!Boolean.TRUE.equals(canCommit)) {
+                        throw new TransactionCommitFailedException("Can Commit failed, no detailed cause available.");
+                    }
+                }
+                return Futures.transformAsync(allOf(cohorts, DOMStoreThreePhaseCommitCohort::preCommit),
+                    preCommits -> Futures.transform(allOf(cohorts, DOMStoreThreePhaseCommitCohort::commit),
+                        commits -> CommitInfo.empty(), directExecutor()),
+                    directExecutor());
+            }, directExecutor());
+
+        return Futures.catchingAsync(future, Throwable.class, throwable -> {
+            LOG.warn("Tx: {} Error during commit", transaction.getIdentifier(), throwable);
+            for (DOMStoreThreePhaseCommitCohort cohort : cohorts) {
+                cohort.abort();
+            }
+            return Futures.immediateFailedFuture(throwable instanceof TransactionCommitFailedException
+                    ? throwable : new TransactionCommitFailedException("commit failed", throwable));
+        }, directExecutor());
+    }
+
+    private static <T> ListenableFuture<List<T>> allOf(Collection<DOMStoreThreePhaseCommitCohort> cohorts,
+            Function<DOMStoreThreePhaseCommitCohort, ListenableFuture<T>> phase) {
+        List<ListenableFuture<T>> futures = new ArrayList<>(cohorts.size());
+        for (DOMStoreThreePhaseCommitCohort cohort : cohorts) {
+            futures.add(phase.apply(cohort));
+        }
+        return Futures.allAsList(futures);
+    }
+}
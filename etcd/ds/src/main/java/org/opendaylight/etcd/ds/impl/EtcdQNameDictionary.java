@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.opendaylight.etcd.ds.impl.EtcdServerUtils.await;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.Varints;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link QNameDictionary} which is persisted in etcd, and thus shared by all nodes of a cluster.
+ *
+ * <p>Each entry is stored under two keys: {@link #PREFIX} 'n' followed by the QName maps to the (varint) code,
+ * and {@link #PREFIX} 'c' followed by the (varint) code maps to the QName.  New codes are allocated by
+ * an etcd Txn which only succeeds if neither key exists yet, so concurrent allocations by several nodes
+ * can never assign the same code to two QNames, or two codes to the same QName.
+ *
+ * <p>Because an entry is always committed before any key or value using its code, a code which is not yet
+ * known locally (e.g. when reading a watch event) can always be loaded from etcd.
+ *
+ * <p>Allocations are asynchronous (see {@link #allocateAsync(Collection)}), and chained one after another,
+ * because they all try the same next code; a commit allocates the QNames it uses like that before encoding them.
+ * Loading an unknown code blocks, but as a {@link ManagedBlocker}, so that a ForkJoinPool decoding in parallel
+ * compensates for it.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdQNameDictionary extends QNameDictionary {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdQNameDictionary.class);
+
+    // NB: The EtcdWatcherSplittingConsumer silently ignores watch events for keys under this prefix
+    static final ByteSequence PREFIX = ByteSequences.append(EtcdDataStore.BASE_PREFIX, (byte) 'Q'); // 81
+    private static final ByteSequence CODE_PREFIX = ByteSequences.append(PREFIX, (byte) 'c');
+    private static final ByteSequence QNAME_PREFIX = ByteSequences.append(PREFIX, (byte) 'n');
+
+    private static final CompletionStage<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private final String name;
+    private final KV etcd;
+
+    // the next code to try to allocate; only ever increases
+    private final AtomicInteger nextCode = new AtomicInteger();
+
+    // the last allocation, which the next one is chained after
+    @GuardedBy("this")
+    private CompletionStage<Integer> lastAllocation = CompletableFuture.completedFuture(0);
+
+    EtcdQNameDictionary(String name, KV etcd) {
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+    }
+
+    /**
+     * Load all entries from etcd.  This is optional, as unknown codes are loaded lazily, but avoids
+     * a round trip to etcd for each one of them during the initial load.
+     */
+    void init() throws EtcdException {
+        GetResponse response = await(etcd.get(CODE_PREFIX, GetOption.newBuilder().withPrefix(CODE_PREFIX).build()));
+        for (KeyValue keyValue : response.getKvs()) {
+            try {
+                register(decodeCode(keyValue.getKey().getBytes(), CODE_PREFIX.size()), decodeQName(keyValue));
+            } catch (IOException e) {
+                throw new EtcdException("Invalid QName dictionary entry: " + ByteSequences.asString(keyValue.getKey()),
+                        e);
+            }
+        }
+        LOG.info("{} loaded {} QName dictionary entries", name, response.getKvs().size());
+    }
+
+    @Override
+    CompletionStage<Void> allocateAsync(Collection<QName> qnames) {
+        @Var CompletionStage<Void> allocated = COMPLETED;
+        for (QName qname : qnames) {
+            if (getKnownCode(qname) == null) {
+                CompletionStage<Integer> allocation = allocateAfterLast(qname);
+                allocated = allocated.thenCombine(allocation, (previous, code) -> null);
+            }
+        }
+        return allocated;
+    }
+
+    private synchronized CompletionStage<Integer> allocateAfterLast(QName qname) {
+        // after the previous allocation, whether that succeeded or not
+        CompletionStage<Integer> allocation = lastAllocation.handle((code, throwable) -> qname)
+                .thenCompose(this::tryAllocate);
+        lastAllocation = allocation;
+        return allocation;
+    }
+
+    private CompletionStage<Integer> tryAllocate(QName qname) {
+        Integer knownCode = getKnownCode(qname);
+        if (knownCode != null) {
+            return CompletableFuture.completedFuture(knownCode);
+        }
+        while (isKnownCode(nextCode.get())) {
+            nextCode.incrementAndGet();
+        }
+        int code = nextCode.get();
+        ByteSequence qnameKey = ByteSequences.append(QNAME_PREFIX, qname.toString().getBytes(UTF_8));
+        ByteSequence codeKey;
+        ByteSequence codeValue;
+        try {
+            codeKey = codeKey(code);
+            codeValue = encodeCode(code);
+        } catch (IOException e) {
+            CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return etcd.txn()
+            .If(new Cmp(qnameKey, Cmp.Op.EQUAL, CmpTarget.version(0)),
+                new Cmp(codeKey, Cmp.Op.EQUAL, CmpTarget.version(0)))
+            .Then(Op.put(qnameKey, codeValue, PutOption.DEFAULT),
+                  Op.put(codeKey, ByteSequence.from(qname.toString(), UTF_8), PutOption.DEFAULT))
+            .Else(Op.get(qnameKey, GetOption.DEFAULT))
+            .commit().thenCompose(response -> {
+                if (response.isSucceeded()) {
+                    LOG.info("{} allocated QName code {} for {}", name, code, qname);
+                    register(code, qname);
+                    nextCode.incrementAndGet();
+                    return CompletableFuture.completedFuture(code);
+                }
+
+                List<KeyValue> existing = response.getGetResponses().get(0).getKvs();
+                if (!existing.isEmpty()) {
+                    // another node concurrently allocated a code for this QName
+                    try {
+                        int existingCode = decodeCode(existing.get(0).getValue().getBytes(), 0);
+                        register(existingCode, qname);
+                        return CompletableFuture.completedFuture(existingCode);
+                    } catch (IOException e) {
+                        CompletableFuture<Integer> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                }
+                // another node concurrently allocated this code for another QName; learn it, and try the next one
+                return etcd.get(codeKey).thenCompose(getResponse -> {
+                    if (!getResponse.getKvs().isEmpty()) {
+                        register(code, decodeQName(getResponse.getKvs().get(0)));
+                    }
+                    return tryAllocate(qname);
+                });
+            });
+    }
+
+    /**
+     * Allocate a code for a QName which was not allocated in advance by {@link #allocateAsync(Collection)}.
+     * This blocks until it has been allocated.
+     */
+    @Override
+    protected int allocate(QName qname) throws IOException {
+        return awaitIO(allocateAfterLast(qname));
+    }
+
+    @Override
+    protected QName load(int code) throws IOException {
+        CodeLoader loader = new CodeLoader(code);
+        try {
+            // the decoding of watch events and of the initial load may run in a ForkJoinPool (see
+            // EtcdYangKV.decodeAll()), which this lets start another thread while this one blocks
+            ForkJoinPool.managedBlock(loader);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading QName code: " + code, e);
+        }
+        return loader.getQName();
+    }
+
+    private final class CodeLoader implements ManagedBlocker {
+        private final int code;
+        private @Nullable QName qname;
+        private @Nullable IOException exception;
+
+        CodeLoader(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                GetResponse response = awaitIO(etcd.get(codeKey(code)));
+                if (response.getKvs().isEmpty()) {
+                    throw new IOException("Unknown QName code, not in etcd: " + code);
+                }
+                qname = decodeQName(response.getKvs().get(0));
+                register(code, qname);
+            } catch (IOException e) {
+                exception = e;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return qname != null || exception != null;
+        }
+
+        QName getQName() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+            return requireNonNull(qname, "qname");
+        }
+    }
+
+    private static ByteSequence codeKey(int code) throws IOException {
+        return ByteSequences.append(CODE_PREFIX, encodeCode(code).getBytes());
+    }
+
+    private static ByteSequence encodeCode(int code) throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput(5);
+        Varints.writeUnsignedVarInt(output, code);
+        return ByteSequence.from(output.toByteArray());
+    }
+
+    private static int decodeCode(byte[] bytes, int offset) throws IOException {
+        return Varints.readUnsignedVarInt(ByteStreams.newDataInput(bytes, offset));
+    }
+
+    private static QName decodeQName(KeyValue keyValue) {
+        return QName.create(keyValue.getValue().toString(UTF_8));
+    }
+
+    private static <T> T awaitIO(CompletionStage<T> future) throws IOException {
+        try {
+            return await(future);
+        } catch (EtcdException e) {
+            throw new IOException("QName dictionary etcd request failed", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import io.etcd.jetcd.KV;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Obtains the current revision of the etcd server, coalescing concurrent callers onto a single request.
+ *
+ * <p>This is like a linearizable "read index": A caller must get a revision which the server returned
+ * to a request sent <i>after</i> the caller asked, so it cannot share a request which is already in flight.
+ * There is therefore at most one request in flight, and all callers arriving meanwhile share the next one,
+ * which is sent as soon as the one in flight completes.  So under load, N concurrent callers cost
+ * at most 2 requests instead of N.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdServerRevisionOracle {
+
+    private final KV etcdKV;
+
+    @GuardedBy("this")
+    private @Nullable CompletableFuture<Long> inFlight;
+
+    @GuardedBy("this")
+    private @Nullable CompletableFuture<Long> next;
+
+    EtcdServerRevisionOracle(KV etcdKV) {
+        this.etcdKV = requireNonNull(etcdKV, "etcdKV");
+    }
+
+    long getServerRevision() throws EtcdException {
+        return EtcdServerUtils.await(getServerRevisionAsync());
+    }
+
+    CompletionStage<Long> getServerRevisionAsync() {
+        CompletableFuture<Long> future;
+        synchronized (this) {
+            if (inFlight != null) {
+                if (next == null) {
+                    next = new CompletableFuture<>();
+                }
+                return next;
+            }
+            future = new CompletableFuture<>();
+            inFlight = future;
+        }
+        send(future);
+        return future;
+    }
+
+    private void send(CompletableFuture<Long> future) {
+        EtcdServerUtils.getServerHeaderAsync(etcdKV).whenComplete((header, throwable) -> {
+            CompletableFuture<Long> nextFuture;
+            synchronized (this) {
+                nextFuture = next;
+                next = null;
+                inFlight = nextFuture;
+            }
+            if (nextFuture != null) {
+                send(nextFuture);
+            }
+
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(header.getRevision());
+            }
+        });
+    }
+}
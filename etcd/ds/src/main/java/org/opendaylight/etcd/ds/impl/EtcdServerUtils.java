@@ -12,7 +12,9 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.options.GetOption;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
@@ -34,8 +36,29 @@ final class EtcdServerUtils {
     }
 
     public static Header getServerHeader(KV etcdKV) throws EtcdException {
+        return await(getServerHeaderAsync(etcdKV));
+    }
+
+    public static CompletionStage<Header> getServerHeaderAsync(KV etcdKV) {
+        return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).thenApply(GetResponse::getHeader);
+    }
+
+    /**
+     * Whether the etcd server still has the given revision, i.e. it has not been compacted yet (and it is not
+     * a future revision), and thus watching for the changes after it is possible.
+     */
+    public static boolean isRevisionAvailable(KV etcdKV, long revision) {
+        try {
+            await(etcdKV.get(ANY_KEY, GetOption.newBuilder().withRevision(revision).withCountOnly(true).build()));
+            return true;
+        } catch (EtcdException e) {
+            return false;
+        }
+    }
+
+    static <T> T await(CompletionStage<T> future) throws EtcdException {
         try {
-            return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS).getHeader();
+            return future.toCompletableFuture().get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
             throw new EtcdException("failed to connect (in time) to etcd server", e);
         }
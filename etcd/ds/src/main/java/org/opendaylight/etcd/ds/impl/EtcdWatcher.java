@@ -8,16 +8,27 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.Watch;
 import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.common.exception.CompactedException;
 import io.etcd.jetcd.options.WatchOption;
 import io.etcd.jetcd.watch.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
@@ -28,12 +39,42 @@ import org.slf4j.LoggerFactory;
 /**
  * Utility with background thread to continuously watch for changes from etcd.
  *
+ * <p>Watch responses are not applied on the (gRPC) thread which receives them, but put into a bounded queue, from
+ * which a single background thread applies them.  It merges all responses which have queued up while it was applying
+ * the previous ones into one, so that during bursts of changes the consumer applies many revisions at once, instead of
+ * each of them separately.  If applying such a batch fails, it may already have been partially applied (e.g. to the
+ * configuration but not to the operational datastore), so neither replaying nor skipping its responses is safe;
+ * the {@link Resyncer} is used to catch up instead (as below).  When the queue is full, receiving further responses
+ * blocks until there is space again, but only for a while; if the queue is still full then, the response and all
+ * further ones of the same watch are dropped, and once what was queued before them has been applied, the Resyncer is
+ * used to catch up instead of applying them.
+ *
+ * <p>If the watch fails (or is completed by the server), then it is re-established, from the revision after the
+ * last one which was applied.  If etcd has meanwhile compacted that revision away, then the changes since then
+ * cannot be watched anymore, and the {@link Resyncer} is used to catch up with the current revision instead.
+ * This also happens on the background thread, after all queued responses have been applied.
+ *
  * @author Michael Vorburger.ch
  */
 class EtcdWatcher implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EtcdWatcher.class);
 
+    // TODO make this a configuration option
+    private static final long RESUME_DELAY_MS = 1000;
+
+    // maximum number of watch responses which are queued up, before receiving more blocks
+    // TODO make this a configuration option
+    private static final int QUEUE_CAPACITY = 1000;
+
+    // how long receiving a watch response blocks at most while the queue is full, before resyncing instead
+    // TODO make this a configuration option
+    private static final long ENQUEUE_TIMEOUT_MS = 5000;
+
+    // maximum number of watch responses which are merged and applied together
+    // TODO make this a configuration option
+    private static final int MAX_MERGED_RESPONSES = 100;
+
     private final Watch etcdWatch;
     private final ListeningExecutorService executor;
     private final String name;
@@ -41,21 +82,56 @@ class EtcdWatcher implements AutoCloseable {
 
     private final ByteSequence prefix;
     private final CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer;
+    private final LongSupplier lastAppliedRevision;
+    private final Resyncer resyncer;
+    private final BlockingQueue<QueuedResponse> queue;
+    private final long enqueueTimeoutMs;
+
+    // incremented for each new watch, so that what is still queued from a previous one can be recognized
+    private final AtomicLong generation = new AtomicLong();
 
-    private Watcher theWatcher;
+    // the generation of the watch whose responses overflowed the queue, and were thus dropped; 0 if none
+    private final AtomicLong overflowedGeneration = new AtomicLong();
+
+    private volatile @Nullable Watcher theWatcher;
+
+    /**
+     * Brings the local state up to date with etcd at its current revision, without watching the changes.
+     */
+    @FunctionalInterface
+    interface Resyncer {
+        /**
+         * Resync.
+         * @return the revision which the local state is now up to date with
+         */
+        long resync() throws EtcdException;
+    }
 
     EtcdWatcher(String name, Client client, ByteSequence prefix,
-            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer) {
+            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer,
+            LongSupplier lastAppliedRevision, Resyncer resyncer) {
+        this(name, client, prefix, consumer, lastAppliedRevision, resyncer, QUEUE_CAPACITY, ENQUEUE_TIMEOUT_MS);
+    }
+
+    @VisibleForTesting
+    EtcdWatcher(String name, Client client, ByteSequence prefix,
+            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer,
+            LongSupplier lastAppliedRevision, Resyncer resyncer, int queueCapacity, long enqueueTimeoutMs) {
         this.name = name;
         this.prefix = prefix;
         this.consumer = consumer;
+        this.lastAppliedRevision = requireNonNull(lastAppliedRevision, "lastAppliedRevision");
+        this.resyncer = requireNonNull(resyncer, "resyncer");
         this.etcdWatch = requireNonNull(client, "client").getWatchClient();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
 
         this.executor = Executors.newListeningSingleThreadExecutor("EtcdWatcher-" + name, LOG);
     }
 
     public void start(long revision) {
         this.theWatcher = watch(revision);
+        executor.execute(this::applyQueued);
     }
 
     @Override
@@ -64,28 +140,203 @@ class EtcdWatcher implements AutoCloseable {
         // do not etcdWatch.close(); as that will happen when the Client gets closed
         isOpen.set(false);
         executor.shutdownNow(); // intentionally NOT Executors.shutdownAndAwaitTermination(executor);
-        if (theWatcher != null) {
-            theWatcher.close();
+        Watcher watcher = theWatcher;
+        if (watcher != null) {
+            watcher.close();
         }
         LOG.info("{} closed.", name);
     }
 
-    private Watcher watch(long revision) {
-        Watch.Listener listener = Watch.listener(response -> {
-            List<WatchEvent> events = response.getEvents();
-            for (WatchEvent event : events) {
-                LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
-                        KeyValues.toStringable(event.getKeyValue()));
+    private void applyQueued() {
+        List<QueuedResponse> responses = new ArrayList<>(MAX_MERGED_RESPONSES);
+        try {
+            while (isOpen.get()) {
+                // not take(), so that an overflow is noticed even if nothing was queued after it
+                QueuedResponse response = queue.poll(RESUME_DELAY_MS, MILLISECONDS);
+                if (response != null) {
+                    responses.add(response);
+                    queue.drainTo(responses, MAX_MERGED_RESPONSES - 1);
+                    apply(responses);
+                    responses.clear();
+                }
+                // once what was queued before the overflow has been applied (nothing is queued after it)
+                if (overflowedGeneration.get() == generation.get() && queue.isEmpty()) {
+                    LOG.warn("{} dropped watch responses because the queue was full, resyncing", name);
+                    resume(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() interrupts us
+            LOG.debug("{} interrupted, stop applying watch responses", name);
+        }
+    }
+
+    private void apply(List<QueuedResponse> responses) throws InterruptedException {
+        List<QueuedResponse> merged = new ArrayList<>(responses.size());
+        for (QueuedResponse response : responses) {
+            if (response.generation != generation.get()) {
+                // this includes what followed a response which failed to be applied, and was thus resynced
+                LOG.debug("{} ignoring response of a previous watch: {}", name, response);
+            } else if (response.resume != null) {
+                // the watch failed; apply what it delivered before that, and then resume it
+                accept(merged);
+                merged.clear();
+                // unless applying that failed, and the watch was thus already resumed
+                if (response.generation == generation.get()) {
+                    resume(response.resume == Resume.RESYNC);
+                }
+            } else {
+                merged.add(response);
+            }
+        }
+        accept(merged);
+    }
+
+    /**
+     * Apply the responses, merged into one.  If that fails, the watch is resumed by resyncing, instead of applying
+     * them again (one by one), because the consumer may have already applied them to some of its datastores, which
+     * would then go back to older states, and skipping them would lose their changes.  The resync only applies what
+     * differs between etcd at its current revision and the local state, so it neither replays nor loses anything.
+     */
+    private void accept(List<QueuedResponse> responses) throws InterruptedException {
+        if (responses.isEmpty()) {
+            return;
+        }
+        @Var long revision = -1;
+        List<WatchEvent> events = new ArrayList<>();
+        for (QueuedResponse response : responses) {
+            if (response.events.isEmpty()) {
+                LOG.debug("{} watch: progress notification, revision={}", name, response.revision);
+            }
+            revision = Math.max(revision, response.revision);
+            events.addAll(response.events);
+        }
+        try {
+            consumer.accept(revision, events);
+        } catch (EtcdException e) {
+            LOG.error("{} applying {} (merged) watch responses up to revision {} failed, resyncing",
+                    name, responses.size(), revision, e);
+            resume(true);
+        }
+    }
+
+    private void enqueue(QueuedResponse response) {
+        if (response.generation == overflowedGeneration.get()) {
+            // after one was dropped, the following ones cannot be applied either; applyQueued() resyncs instead
+            LOG.debug("{} dropped watch response after queue overflow: {}", name, response);
+            return;
+        }
+        try {
+            // this blocks (the gRPC thread which received the response) while the queue is full, but not forever
+            if (!queue.offer(response, enqueueTimeoutMs, MILLISECONDS)) {
+                LOG.warn("{} watch responses queue still full after {}ms, dropped: {}",
+                        name, enqueueTimeoutMs, response);
+                overflowedGeneration.set(response.generation);
             }
+        } catch (InterruptedException e) {
+            LOG.warn("{} interrupted while queuing watch response, dropped: {}", name, response);
+            overflowedGeneration.set(response.generation);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a watch response, to be applied by the background thread.
+     */
+    @VisibleForTesting
+    void onResponse(long watchGeneration, long revision, List<WatchEvent> events) {
+        for (WatchEvent event : events) {
+            LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
+                    KeyValues.toStringable(event.getKeyValue()));
+        }
+        enqueue(new QueuedResponse(watchGeneration, revision, events));
+    }
+
+    private void onError(long watchGeneration, Throwable throwable) {
+        if (!isOpen.get()) {
+            return;
+        }
+        if (throwable instanceof CompactedException) {
+            LOG.warn("{} watch failed because etcd compacted revisions not yet applied, resyncing", name, throwable);
+            enqueue(new QueuedResponse(watchGeneration, Resume.RESYNC));
+        } else {
+            LOG.warn("{} watch failed, resuming", name, throwable);
+            enqueue(new QueuedResponse(watchGeneration, Resume.WATCH));
+        }
+    }
+
+    private void onCompleted(long watchGeneration) {
+        if (!isOpen.get()) {
+            return;
+        }
+        LOG.warn("{} watch completed by server, resuming", name);
+        enqueue(new QueuedResponse(watchGeneration, Resume.WATCH));
+    }
+
+    private void resume(boolean isCompacted) throws InterruptedException {
+        Watcher oldWatcher = theWatcher;
+        if (oldWatcher != null) {
+            oldWatcher.close();
+        }
+        while (isOpen.get()) {
+            // delayed, so that we don't busy loop while the etcd server is (or its leader is) unavailable
+            Thread.sleep(RESUME_DELAY_MS);
             try {
-                consumer.accept(response.getHeader().getRevision(), events);
+                // if the last applied revision has been compacted meanwhile, the new watch fails, and we resync
+                long revision = isCompacted ? resyncer.resync() : lastAppliedRevision.getAsLong();
+                LOG.info("{} resuming watch after revision {}", name, revision);
+                theWatcher = watch(revision + 1);
+                return;
             } catch (EtcdException e) {
-                LOG.error("watch consumer accept failed", e);
+                LOG.error("{} resync failed, retrying", name, e);
             }
-        });
-        Watcher watcher = etcdWatch.watch(prefix,
-                WatchOption.newBuilder().withPrefix(prefix).withRevision(revision).build(), listener);
+        }
+    }
+
+    private Watcher watch(long revision) {
+        long watchGeneration = generation.incrementAndGet();
+        Watch.Listener listener = Watch.listener(
+            response -> onResponse(watchGeneration, response.getHeader().getRevision(), response.getEvents()),
+            throwable -> onError(watchGeneration, throwable), () -> onCompleted(watchGeneration));
+        // withProgressNotify, so that even while nothing changes we learn that we are up-to-date
+        // (see RevAwaiter.progress() and its use for Consistency.BOUNDED_STALENESS); NB that etcd only sends
+        // these every 10 minutes, unless configured otherwise with --experimental-watch-progress-notify-interval
+        Watcher watcher = etcdWatch.watch(prefix, WatchOption.newBuilder().withPrefix(prefix).withRevision(revision)
+                .withProgressNotify(true).build(), listener);
         // TODO is .withRange(prefix + 1) needed?!
         return watcher;
     }
+
+    private enum Resume { WATCH, RESYNC }
+
+    /**
+     * A watch response, or (if resume is not null) the failure of the watch.
+     */
+    private static final class QueuedResponse {
+        final long generation;
+        final long revision;
+        final List<WatchEvent> events;
+        final @Nullable Resume resume;
+
+        QueuedResponse(long generation, long revision, List<WatchEvent> events) {
+            this.generation = generation;
+            this.revision = revision;
+            this.events = events;
+            this.resume = null;
+        }
+
+        QueuedResponse(long generation, Resume resume) {
+            this.generation = generation;
+            this.revision = -1;
+            this.events = Collections.emptyList();
+            this.resume = resume;
+        }
+
+        @Override
+        public String toString() {
+            return resume != null ? "QueuedResponse{generation=" + generation + ", resume=" + resume + "}"
+                    : "QueuedResponse{generation=" + generation + ", revision=" + revision + ", events=" + events.size()
+                        + "}";
+        }
+    }
 }
@@ -40,6 +40,12 @@ class EtcdWatcherSplittingConsumer implements CheckedBiConsumer<Long, List<Watch
 
     @Override
     public void accept(Long revision, List<WatchEvent> allWatchEvents) throws EtcdException {
+        if (allWatchEvents.isEmpty()) {
+            // a watch progress notification, which tells us that we have seen all changes up to this revision
+            revAwaiter.ifPresent(revAwait -> revAwait.progress(revision));
+            return;
+        }
+
         Builder<ByteSequence, List<WatchEvent>> listsBuilder = builderWithExpectedSize(splitConsumers.size());
         ImmutableSet<ByteSequence> prefixes = splitConsumers.keySet();
         for (ByteSequence keyPrefix : prefixes) {
@@ -8,51 +8,68 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.opendaylight.etcd.utils.ByteSequences.toStringable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteStreams;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
-import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
 import io.etcd.jetcd.op.Op;
 import io.etcd.jetcd.options.DeleteOption;
 import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.GetOption.SortOrder;
+import io.etcd.jetcd.options.GetOption.SortTarget;
 import io.etcd.jetcd.options.PutOption;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Function;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.ThreadSafe;
-import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.LoggingKV;
-import org.opendaylight.infrautils.utils.concurrent.CompletableFutures;
-import org.opendaylight.infrautils.utils.function.CheckedCallable;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.infrautils.utils.function.CheckedFunction;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeWithValue;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.DataContainerChild;
+import org.opendaylight.yangtools.yang.data.api.schema.DataContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafSetEntryNode;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNodeContainer;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidateNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.TypeDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,32 +96,221 @@ class EtcdYangKV implements AutoCloseable {
     // key *AND* value, we could (eventually) remove it
 
     private final KV etcd;
+    private final EtcdGroupCommitter groupCommitter;
     private final byte[] prefixByteArray;
     private final ByteSequence prefixByteSequence;
+    private static final int PATH_ARGUMENT_CACHE_SIZE = 10000;
+
+    // below this number of keys and values, decodeAll() does not bother decoding in parallel
+    private static final int PARALLEL_DECODE_THRESHOLD = 64;
+
+    // number of keys and values decoded by each DecodeTask
+    private static final int PARALLEL_DECODE_BATCH_SIZE = 32;
+
+    // number of keys read per request by readAllInto()
+    // TODO make this a configuration option
+    private static final int READ_ALL_PAGE_SIZE = 1000;
+
+    // values smaller than this (in bytes) are never compressed, as it's not worth it
+    // TODO make this a configuration option
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private static final ByteSequence SCHEMA_AWARE_LEAF_NODE =
+            ByteSequences.fromBytes(SchemaAwareValueCodec.LEAF_NODE);
+    private static final ByteSequence SCHEMA_AWARE_LEAF_SET_ENTRY_NODE =
+            ByteSequences.fromBytes(SchemaAwareValueCodec.LEAF_SET_ENTRY_NODE);
+
     private final String name;
+    private final QNameDictionary dictionary;
+    private final StorageGranularity granularity;
+
+    // reused for all keys and values written respectively read by the same thread
+    private final ThreadLocal<ReusableByteSequenceOutput> outputs;
+    private final ThreadLocal<ReusableByteSequenceInput> inputs;
 
-    EtcdYangKV(String name, Client client, ByteSequence prefix) {
+    // encoded (without prefix) PathArguments, see toChildByteSequence()
+    private final Cache<PathArgument, ByteSequence> pathArgumentCache =
+            CacheBuilder.newBuilder().maximumSize(PATH_ARGUMENT_CACHE_SIZE).build();
+
+    // null until we have a SchemaContext
+    private volatile @Nullable SchemaAwareValueCodec schemaAwareValueCodec;
+    private volatile @Nullable StructuralNodes structuralNodes;
+    private volatile byte formatVersion = EtcdFormatVersion.SHALLOW;
+
+    EtcdYangKV(String name, Client client, ByteSequence prefix, EtcdGroupCommitter groupCommitter,
+            QNameDictionary dictionary, StorageGranularity granularity) {
         // TODO make the LoggingKV a configuration option (for performance)
         this.name = name;
         this.etcd = new LoggingKV(name + " ", requireNonNull(client, "client").getKVClient());
+        this.groupCommitter = requireNonNull(groupCommitter, "groupCommitter");
+        this.dictionary = requireNonNull(dictionary, "dictionary");
+        this.granularity = requireNonNull(granularity, "granularity");
+        this.outputs = ThreadLocal.withInitial(() -> new ReusableByteSequenceOutput(dictionary));
+        this.inputs = ThreadLocal.withInitial(() -> new ReusableByteSequenceInput(dictionary));
         this.prefixByteArray = prefix.getBytes();
         this.prefixByteSequence = prefix;
     }
 
+    void setSchemaContext(SchemaContext schemaContext) {
+        schemaAwareValueCodec = new SchemaAwareValueCodec(schemaContext, dictionary);
+        structuralNodes = new StructuralNodes(schemaContext);
+    }
+
+    /**
+     * Set the {@link EtcdFormatVersion} of the values we write.  Values in all formats up to
+     * {@link EtcdFormatVersion#CURRENT} can always be read.
+     */
+    void setFormatVersion(byte formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    /**
+     * Whether the node at the path is stored as one value including its leaf children, see {@link StorageGranularity}.
+     */
+    boolean isAggregatingLeaves(YangInstanceIdentifier path, @Nullable NormalizedNode<?, ?> node) {
+        return node instanceof DataContainerNode && granularity.isAggregatingLeaves(path);
+    }
+
+    /**
+     * Whether the node at the path is not stored itself, because it is a structural node with children,
+     * see {@link StorageGranularity#isElidingStructuralNodes()}.
+     */
+    boolean isElided(YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+        StructuralNodes structural = structuralNodes;
+        return granularity.isElidingStructuralNodes() && structural != null
+                && isStructuralContainer(structural, path, node) && !isEmptyStructural(structural, path, node);
+    }
+
+    /**
+     * Whether the node at the path is a structural node without any children (other than such empty structural
+     * nodes themselves), which is not kept when eliding them, see
+     * {@link StorageGranularity#isElidingStructuralNodes()}.  Such a node may still have a key of its own, if it
+     * was written while it was empty; that key has to be deleted along with its last child, because otherwise the
+     * node would come back after a restart, although it was removed from the DataTree.
+     */
+    boolean isEmptyStructural(YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+        StructuralNodes structural = structuralNodes;
+        return granularity.isElidingStructuralNodes() && structural != null
+                && isEmptyStructural(structural, path, node);
+    }
+
+    private boolean isEmptyStructural(StructuralNodes structural, YangInstanceIdentifier path,
+            NormalizedNode<?, ?> node) {
+        if (!isStructuralContainer(structural, path, node)) {
+            return false;
+        }
+        for (NormalizedNode<?, ?> child : ((NormalizedNodeContainer<?, ?, ?>) node).getValue()) {
+            if (!isEmptyStructural(structural, path.node(child.getIdentifier()), child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the node at the path, if it exists, certainly is stored under its own key.  That is not the case for
+     * the root, nor (when eliding them) for structural nodes, which may or may not have a key of their own.
+     */
+    boolean hasOwnKey(YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+        StructuralNodes structural = structuralNodes;
+        return !path.getPathArguments().isEmpty() && !(granularity.isElidingStructuralNodes()
+                && (structural == null || isStructuralContainer(structural, path, node)));
+    }
+
+    private boolean isStructuralContainer(StructuralNodes structural, YangInstanceIdentifier path,
+            NormalizedNode<?, ?> node) {
+        return !isAggregatingLeaves(path, node) && node instanceof NormalizedNodeContainer
+                && structural.isStructural(path, node);
+    }
+
     @Override
     @PreDestroy
     public void close() {
         etcd.close();
     }
 
-    public EtcdTxn newTransaction() {
-        return new EtcdTxn();
+    /**
+     * Start a new etcd transaction.
+     *
+     * @param baseRevision the etcd revision which the changes are based on; if present, the transaction
+     *        will only succeed if none of the keys it touches were modified after this revision
+     * @return the new transaction
+     */
+    public EtcdTxn newTransaction(OptionalLong baseRevision) {
+        return new EtcdTxn(baseRevision);
+    }
+
+    /**
+     * Allocate, without blocking, the {@link QNameDictionary} codes of the QNames which the changes of the node
+     * (and its children) will be encoded with, so that encoding them for an {@link EtcdTxn} then does not block.
+     * A QName missed here is still allocated when encoding it, just not in advance.
+     */
+    CompletionStage<Void> allocateQNames(DataTreeCandidateNode node) {
+        Set<QName> qnames = new HashSet<>();
+        collectQNames(node, qnames);
+        return dictionary.allocateAsync(qnames);
+    }
+
+    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    private static void collectQNames(DataTreeCandidateNode node, Set<QName> qnames) {
+        switch (node.getModificationType()) {
+            case WRITE:
+            case APPEARED:
+                node.getDataAfter().ifPresent(dataAfter -> collectQNames(dataAfter, qnames));
+                return;
+
+            case UNMODIFIED:
+            case DELETE:
+            case DISAPPEARED:
+                // the keys of nodes which existed before are encoded with QNames which are already known
+                return;
+
+            case SUBTREE_MODIFIED:
+                node.getDataAfter().ifPresent(dataAfter -> collectQNames(dataAfter.getIdentifier(), qnames));
+                for (DataTreeCandidateNode childNode : node.getChildNodes()) {
+                    collectQNames(childNode, qnames);
+                }
+                return;
+
+            // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+        }
+    }
+
+    private static void collectQNames(NormalizedNode<?, ?> node, Set<QName> qnames) {
+        collectQNames(node.getIdentifier(), qnames);
+        if (node instanceof NormalizedNodeContainer) {
+            for (NormalizedNode<?, ?> child : ((NormalizedNodeContainer<?, ?, ?>) node).getValue()) {
+                collectQNames(child, qnames);
+            }
+        } else if (node.getValue() instanceof QName) {
+            qnames.add((QName) node.getValue());
+        }
+    }
+
+    private static void collectQNames(PathArgument pathArgument, Set<QName> qnames) {
+        if (pathArgument instanceof AugmentationIdentifier) {
+            qnames.addAll(((AugmentationIdentifier) pathArgument).getPossibleChildNames());
+            return;
+        }
+        qnames.add(pathArgument.getNodeType());
+        if (pathArgument instanceof NodeIdentifierWithPredicates) {
+            for (Map.Entry<QName, Object> keyValue
+                    : ((NodeIdentifierWithPredicates) pathArgument).getKeyValues().entrySet()) {
+                qnames.add(keyValue.getKey());
+                if (keyValue.getValue() instanceof QName) {
+                    qnames.add((QName) keyValue.getValue());
+                }
+            }
+        } else if (pathArgument instanceof NodeWithValue
+                && ((NodeWithValue<?>) pathArgument).getValue() instanceof QName) {
+            qnames.add((QName) ((NodeWithValue<?>) pathArgument).getValue());
+        }
     }
 /*
     public @CheckReturnValue CompletionStage<PutResponse> put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
         return handleException(() -> {
             ByteSequence key = toByteSequence(path);
-            ByteSequence value = toByteSequence(data);
+            ByteSequence value = toByteSequence(path, data);
             return etcd.put(key, value);
         });
     }
@@ -129,126 +335,450 @@ class EtcdYangKV implements AutoCloseable {
     }
 */
     public void applyDelete(DataTreeModification dataTree, ByteSequence key) throws EtcdException {
-        YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
+        DecodedKeyValue keyValue = new DecodedKeyValue(key, null);
+        decode(keyValue);
+        applyDelete(dataTree, keyValue);
+    }
+
+    /**
+     * Apply a delete of a key, which was already decoded by {@link #decodeAll(List)}.
+     */
+    public void applyDelete(DataTreeModification dataTree, DecodedKeyValue keyValue) throws EtcdException {
+        KeyPath keyPath = keyValue.getKeyPath();
+        if (keyPath.isChunk()) {
+            // obsolete chunks of a value which got smaller, see EtcdTxn.put()
+            return;
+        }
+        YangInstanceIdentifier path = keyPath.path;
         dataTree.delete(path);
+        if (granularity.isElidingStructuralNodes()) {
+            deleteEmptyStructuralAncestors(dataTree, path);
+        }
     }
 
-    public void applyPut(DataTreeModification dataTree, ByteSequence key, ByteSequence value) throws EtcdException {
-        try {
-            YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
-            PathArgument pathArgument = path.getLastPathArgument();
-            NormalizedNode<?, ?> data = pathArgument instanceof AugmentationIdentifier
-                    // because an AugmentationIdentifier has no node type QName
-                    ? fromByteSequenceToNormalizedNode(value)
-                    : fromByteSequenceToNormalizedNode(value, pathArgument.getNodeType());
-            // TODO when to write and when to merge, that is the question ...
-            dataTree.write(path, data);
-        } catch (IllegalArgumentException e) {
-            // LOG.error("readAllInto write failed: {} ➠ {}", ByteSequences.asString(kv.getKey()),
-            //        ByteSequences.asString(kv.getValue()), e);
-            throw new EtcdException("readAllInto write failed: " + ByteSequences.asString(key)
-                    + " ➠ " + ByteSequences.asString(value), e);
+    /**
+     * Delete the ancestors of a deleted node which are structural nodes which are now empty.  Because elided
+     * structural nodes have no key of their own, there are no watch events deleting them; and as they would not
+     * be recreated after a restart, they must not remain elsewhere either.
+     */
+    private void deleteEmptyStructuralAncestors(DataTreeModification dataTree, YangInstanceIdentifier path) {
+        StructuralNodes structural = structuralNodes;
+        if (structural == null) {
+            return;
+        }
+        @Var YangInstanceIdentifier ancestorPath = path.getParent();
+        while (ancestorPath != null && !ancestorPath.getPathArguments().isEmpty()) {
+            Optional<NormalizedNode<?, ?>> ancestor = dataTree.readNode(ancestorPath);
+            if (!ancestor.isPresent() || !(ancestor.get() instanceof NormalizedNodeContainer)
+                    || !((NormalizedNodeContainer<?, ?, ?>) ancestor.get()).getValue().isEmpty()
+                    || !structural.isStructural(ancestorPath, ancestor.get())) {
+                return;
+            }
+            dataTree.delete(ancestorPath);
+            ancestorPath = ancestorPath.getParent();
         }
     }
 
-    public void readAllInto(long rev, DataTreeModification dataTree) throws EtcdException {
+    /**
+     * Recreate the elided structural ancestors of the node at the path, if they do not exist yet.
+     */
+    private void createMissingAncestors(DataTreeModification dataTree, YangInstanceIdentifier path)
+            throws EtcdException {
+        YangInstanceIdentifier parentPath = path.getParent();
+        if (parentPath == null || parentPath.getPathArguments().isEmpty()
+                || dataTree.readNode(parentPath).isPresent()) {
+            return;
+        }
+        StructuralNodes structural = structuralNodes;
+        if (structural == null) {
+            throw new EtcdException("Cannot recreate elided structural nodes without a SchemaContext: " + path);
+        }
+        // merge, so that any of the ancestors which do already exist (with their children) are kept
+        dataTree.merge(YangInstanceIdentifier.create(parentPath.getPathArguments().get(0)),
+                structural.createWithAncestors(parentPath));
+    }
+
+    /**
+     * Apply a put of a key and value to the data tree.  Chunks of large values (see {@link ValueChunks}) are
+     * collected by the assembler, and only applied once the value is complete.
+     */
+    public void applyPut(DataTreeModification dataTree, ByteSequence key, ByteSequence value,
+            ValueChunks.Assembler chunks) throws EtcdException {
+        DecodedKeyValue keyValue = new DecodedKeyValue(key, value);
+        decode(keyValue);
+        applyPut(dataTree, keyValue, chunks);
+    }
+
+    /**
+     * Apply a put of a key and value, which was already decoded by {@link #decodeAll(List)}.
+     */
+    public void applyPut(DataTreeModification dataTree, DecodedKeyValue keyValue, ValueChunks.Assembler chunks)
+            throws EtcdException {
+        KeyPath keyPath = keyValue.getKeyPath();
+        ByteSequence value = requireNonNull(keyValue.value, "value");
         try {
-            GetOption getOpt = GetOption.newBuilder().withRevision(rev).withPrefix(prefixByteSequence).build();
-            read(prefixByteSequence, getOpt, kvs -> {
-                for (KeyValue kv : kvs) {
-                    applyPut(dataTree, kv.getKey(), kv.getValue());
+            if (keyPath.isChunk()) {
+                ByteSequence completeValue = chunks.add(keyPath.path, keyPath.chunkIndex, value);
+                if (completeValue != null) {
+                    apply(dataTree, keyPath.path, keyValue.key,
+                            fromByteSequenceToNormalizedNode(keyPath.path, keyValue.key, completeValue));
                 }
-                return completedFuture(null);
-            }).toCompletableFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new EtcdException("readAllInto() failed", e);
+            } else if (keyValue.data == null) {
+                chunks.start(keyPath.path, value);
+            } else {
+                apply(dataTree, keyPath.path, keyValue.key, keyValue.data);
+            }
+        } catch (IOException e) {
+            throw new EtcdException("Reassembling chunked value failed: " + ByteSequences.asString(keyValue.key), e);
         }
     }
 
-    private @CheckReturnValue <T> CompletionStage<T> read(ByteSequence key, GetOption option,
-            CheckedFunction<List<KeyValue>, CompletionStage<T>, EtcdException> transformer) {
-        return handleException(() -> etcd.get(key, option)
-            .thenCompose(getResponse -> handleException(() -> transformer.apply(getResponse.getKvs()))));
+    private void apply(DataTreeModification dataTree, YangInstanceIdentifier path, ByteSequence key,
+            NormalizedNode<?, ?> data) throws EtcdException {
+        try {
+            if (granularity.isElidingStructuralNodes()) {
+                createMissingAncestors(dataTree, path);
+            }
+            if (isAggregatingLeaves(path, data)) {
+                mergeWithLeaves(dataTree, path, (DataContainerNode<?>) data);
+            } else {
+                // TODO when to write and when to merge, that is the question ...
+                dataTree.write(path, data);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new EtcdException("readAllInto write failed: " + ByteSequences.asString(key) + " ➠ " + data, e);
+        }
+    }
+
+    /**
+     * Decode the keys and values, in parallel if there are many; see {@link DecodedKeyValue}.  This is thread safe,
+     * because all keys and values are decoded independently of each other, each by a reader of the thread doing it.
+     */
+    void decodeAll(List<DecodedKeyValue> keyValues) {
+        if (keyValues.size() < PARALLEL_DECODE_THRESHOLD) {
+            for (DecodedKeyValue keyValue : keyValues) {
+                decode(keyValue);
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(new DecodeTask(keyValues, 0, keyValues.size()));
+        }
     }
 
-    private static @CheckReturnValue <T>
-        CompletionStage<T> handleException(CheckedCallable<CompletionStage<T>, EtcdException> callable) {
+    private void decode(DecodedKeyValue keyValue) {
         try {
-            return callable.call();
+            KeyPath keyPath = fromByteSequenceToKeyPath(keyValue.key);
+            keyValue.keyPath = keyPath;
+            ByteSequence value = keyValue.value;
+            // chunks (and their manifests) can only be decoded once all chunks are there, when applying them
+            if (value != null && !keyPath.isChunk() && !ValueChunks.isChunked(value)) {
+                keyValue.data = fromByteSequenceToNormalizedNode(keyPath.path, keyValue.key, value);
+            }
         } catch (EtcdException e) {
-            return CompletableFutures.completedExceptionally(e);
+            keyValue.exception = e;
         }
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence)
-            throws EtcdException {
-        return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput));
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(YangInstanceIdentifier path, ByteSequence key,
+            ByteSequence compressedValue) throws EtcdException {
+        ByteSequence value = decompress(compressedValue);
+        try {
+            PathArgument pathArgument = path.getLastPathArgument();
+            if (value.startsWith(SCHEMA_AWARE_LEAF_NODE) || value.startsWith(SCHEMA_AWARE_LEAF_SET_ENTRY_NODE)) {
+                return fromSchemaAwareByteSequenceToNormalizedNode(path, value);
+            } else if (pathArgument instanceof AugmentationIdentifier) {
+                // because an AugmentationIdentifier has no node type QName
+                return fromByteSequenceToNormalizedNode(value, null);
+            } else {
+                return fromByteSequenceToNormalizedNode(value, pathArgument.getNodeType());
+            }
+        } catch (IllegalArgumentException e) {
+            throw new EtcdException("readAllInto read failed: " + ByteSequences.asString(key)
+                    + " ➠ " + ByteSequences.asString(value), e);
+        }
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, QName qname)
-            throws EtcdException {
-        return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput, qname));
+    /**
+     * Apply a value which includes all leaf children of its node, but none of its other children (which are stored
+     * under their own keys, and may have already been applied, so we must not overwrite them).
+     */
+    private static void mergeWithLeaves(DataTreeModification dataTree, YangInstanceIdentifier path,
+            DataContainerNode<?> data) {
+        Optional<NormalizedNode<?, ?>> existing = dataTree.readNode(path);
+        if (!existing.isPresent() || !(existing.get() instanceof DataContainerNode)) {
+            dataTree.write(path, data);
+            return;
+        }
+        // leaves which are no longer in the value were removed
+        for (DataContainerChild<?, ?> existingChild : ((DataContainerNode<?>) existing.get()).getValue()) {
+            if (existingChild instanceof LeafNode && !data.getChild(existingChild.getIdentifier()).isPresent()) {
+                dataTree.delete(path.node(existingChild.getIdentifier()));
+            }
+        }
+        dataTree.merge(path, data);
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence,
-            Function<DataInputStream, NormalizedNodeDataInput> nodeDataInputProvider) throws EtcdException {
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(byteSequence.getBytes())) {
-            try (DataInputStream dataInput = new DataInputStream(bais)) {
-                return nodeDataInputProvider.apply(dataInput).readNormalizedNode();
+    /**
+     * Read all keys and values as of the revision into the data tree.  This is done in pages of (at most)
+     * {@link #READ_ALL_PAGE_SIZE} keys, in key order, so that the memory used does not grow with the size
+     * of the datastore, and only each page (instead of the entire load) must be received within {@link #TIMEOUT_MS}.
+     */
+    public void readAllInto(long rev, DataTreeModification dataTree) throws EtcdException {
+        GetOption getOpt = GetOption.newBuilder().withRevision(rev)
+                .withRange(ByteSequences.prefixEnd(prefixByteSequence)).withLimit(READ_ALL_PAGE_SIZE)
+                .withSortField(SortTarget.KEY).withSortOrder(SortOrder.ASCEND).build();
+        // chunks of a value may span pages
+        ValueChunks.Assembler chunks = new ValueChunks.Assembler();
+        @Var ByteSequence fromKey = prefixByteSequence;
+        @Var long count = 0;
+        @Var boolean hasMore = true;
+        while (hasMore) {
+            List<KeyValue> kvs;
+            try {
+                GetResponse response = etcd.get(fromKey, getOpt).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                kvs = response.getKvs();
+                hasMore = response.isMore() && !kvs.isEmpty();
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new EtcdException("readAllInto() failed, after " + count + " keys", e);
             }
+            List<DecodedKeyValue> keyValues = new ArrayList<>(kvs.size());
+            for (KeyValue kv : kvs) {
+                keyValues.add(new DecodedKeyValue(kv.getKey(), kv.getValue()));
+            }
+            decodeAll(keyValues);
+            for (DecodedKeyValue keyValue : keyValues) {
+                applyPut(dataTree, keyValue, chunks);
+            }
+            count += kvs.size();
+            if (hasMore) {
+                // the next page starts right after the last key of this one, which is that key followed by a 0 byte
+                fromKey = ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0);
+                LOG.info("{} readAllInto at revision {} loaded {} keys so far...", name, rev, count);
+            }
+        }
+        chunks.checkComplete();
+        LOG.info("{} readAllInto at revision {} loaded {} keys", name, rev, count);
+    }
+
+    private static ByteSequence decompress(ByteSequence value) throws EtcdException {
+        try {
+            return ValueCompression.decompress(value);
+        } catch (IOException e) {
+            throw new EtcdException("Decompressing value failed: " + ByteSequences.asString(value), e);
+        }
+    }
+
+    /**
+     * Compress the value, if the format version allows it, and it is large enough to be worth it.
+     */
+    private ByteSequence compress(ByteSequence value) throws EtcdException {
+        if (formatVersion < EtcdFormatVersion.COMPRESSED) {
+            return value;
+        }
+        try {
+            return ValueCompression.compress(value, COMPRESSION_THRESHOLD);
+        } catch (IOException e) {
+            throw new EtcdException("Compressing value failed", e);
+        }
+    }
+
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, @Nullable QName qname)
+            throws EtcdException {
+        try {
+            return read(byteSequence, 0, qname, input -> input.reader().readNormalizedNode());
         } catch (IOException e) {
             throw new EtcdException("byte[] -> NormalizedNode failed", e);
         }
     }
 
+    private NormalizedNode<?, ?> fromSchemaAwareByteSequenceToNormalizedNode(YangInstanceIdentifier path,
+            ByteSequence byteSequence) throws EtcdException {
+        SchemaAwareValueCodec codec = schemaAwareValueCodec;
+        if (codec == null) {
+            throw new EtcdException("Cannot read schema aware value without a SchemaContext: " + path);
+        }
+        TypeDefinition<?> type = codec.getLeafType(path);
+        if (type == null) {
+            throw new EtcdException("Cannot read schema aware value, no leaf schema found: " + path);
+        }
+        try {
+            return read(byteSequence, 0, null, input -> {
+                byte nodeType = input.reader().readByte();
+                Object value = codec.read(input.reader(), type);
+                QName qname = path.getLastPathArgument().getNodeType();
+                if (nodeType == SchemaAwareValueCodec.LEAF_NODE) {
+                    return Builders.leafBuilder().withNodeIdentifier(new NodeIdentifier(qname)).withValue(value)
+                            .build();
+                } else {
+                    return Builders.leafSetEntryBuilder().withNodeIdentifier(new NodeWithValue<>(qname, value))
+                            .withValue(value).build();
+                }
+            });
+        } catch (IOException e) {
+            throw new EtcdException("byte[] -> NormalizedNode failed: " + path, e);
+        }
+    }
+
     @VisibleForTesting
     YangInstanceIdentifier fromByteSequenceToYangInstanceIdentifier(ByteSequence byteSequence) throws EtcdException {
-        ByteArrayDataInput dataInput = ByteStreams.newDataInput(byteSequence.getBytes());
-        for (byte prefix : prefixByteArray) {
-            byte readPrefix = dataInput.readByte();
-            if (readPrefix != prefix) {
-                throw new EtcdException(
-                        "The read prefix does not match the expected prefix: " + readPrefix + " -VS- " + prefix);
-            }
+        KeyPath keyPath = fromByteSequenceToKeyPath(byteSequence);
+        if (keyPath.isChunk()) {
+            throw new EtcdException("Key of a chunk, not of a node: " + ByteSequences.asString(byteSequence));
         }
+        return keyPath.path;
+    }
 
+    private KeyPath fromByteSequenceToKeyPath(ByteSequence byteSequence) throws EtcdException {
+        if (!byteSequence.startsWith(prefixByteSequence)) {
+            throw new EtcdException("The key does not start with the expected prefix "
+                    + ByteSequences.asString(prefixByteSequence) + ": " + ByteSequences.asString(byteSequence));
+        }
         try {
-            NormalizedNodeDataInput nodeDataInput = new ShallowNormalizedNodeInputStreamReader(dataInput);
-            return nodeDataInput.readYangInstanceIdentifier();
+            return read(byteSequence, prefixByteArray.length, null, input -> {
+                // see toByteSequence(YangInstanceIdentifier) re. why there is no count of path arguments
+                List<PathArgument> pathArguments = new ArrayList<>();
+                while (input.available() > 0) {
+                    if (input.peek() == ValueChunks.CHUNK_KEY_SEPARATOR) {
+                        int chunkIndex = ValueChunks.readChunkIndex(input.reader());
+                        if (input.available() > 0) {
+                            throw new IOException("Unexpected bytes after chunk index in key: "
+                                    + ByteSequences.asString(byteSequence));
+                        }
+                        return new KeyPath(YangInstanceIdentifier.create(pathArguments), chunkIndex);
+                    }
+                    PathArgument pathArgument = input.reader().readPathArgument();
+                    if (pathArgument == null) {
+                        throw new IOException("Unknown PathArgument type in key: "
+                                + ByteSequences.asString(byteSequence));
+                    }
+                    pathArguments.add(pathArgument);
+                }
+                return new KeyPath(YangInstanceIdentifier.create(pathArguments), KeyPath.NOT_A_CHUNK);
+            });
         } catch (IOException e) {
             throw new EtcdException("byte[] -> YangInstanceIdentifier failed", e);
         }
     }
 
+    private <T> T read(ByteSequence byteSequence, int offset, @Nullable QName firstQName,
+            CheckedFunction<ReusableByteSequenceInput, T, IOException> function) throws IOException {
+        ReusableByteSequenceInput input = inputs.get();
+        try {
+            input.start(byteSequence, offset, firstQName);
+            T result = function.apply(input);
+            input.finish();
+            return result;
+        } finally {
+            if (!input.isReusable()) {
+                inputs.remove();
+            }
+        }
+    }
+
     private ByteSequence toByteSequence(boolean writePrefix,
             CheckedConsumer<NormalizedNodeDataOutput, IOException> consumer) throws IOException {
-        // TODO Is there any advantage converting this to use Guava's I/O ?
-        // ByteArrayDataOutput dataOutput = ByteStreams.newDataOutput();
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            try (DataOutputStream dataOutput = new DataOutputStream(baos)) {
-                if (writePrefix) {
-                    dataOutput.write(prefixByteArray, 0, prefixByteArray.length);
-                }
-                try (NormalizedNodeDataOutput nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput)) {
-                    consumer.accept(nodeDataOutput);
-                    dataOutput.flush();
-                    return ByteSequence.from(baos.toByteArray());
-                }
+        return toByteSequence(writePrefix, false, consumer);
+    }
+
+    private ByteSequence toByteSequence(boolean writePrefix, boolean writeLeafChildren,
+            CheckedConsumer<NormalizedNodeDataOutput, IOException> consumer) throws IOException {
+        ReusableByteSequenceOutput output = outputs.get();
+        try {
+            NormalizedNodeDataOutput nodeDataOutput = output.start(writeLeafChildren);
+            if (writePrefix) {
+                nodeDataOutput.write(prefixByteArray, 0, prefixByteArray.length);
+            }
+            consumer.accept(nodeDataOutput);
+            return output.toByteSequence();
+        } finally {
+            if (!output.isReusable()) {
+                outputs.remove();
             }
         }
     }
 
-    @VisibleForTesting
+    /**
+     * Key of a path.  This is the prefix followed by each of the path arguments, but intentionally NOT
+     * by their count first (as NormalizedNodeDataOutput.writeYangInstanceIdentifier() does), because each
+     * path argument is self-delimiting anyway.  This way the key of a node is a byte prefix of the keys of all
+     * of its descendants (and sorts before them), so that a subtree is one contiguous key range in etcd.
+     */
     ByteSequence toByteSequence(YangInstanceIdentifier path) throws EtcdException {
         try {
-            return toByteSequence(true, nodeDataOutput -> nodeDataOutput.writeYangInstanceIdentifier(path));
+            return toByteSequence(true, nodeDataOutput -> {
+                for (PathArgument pathArgument : path.getPathArguments()) {
+                    nodeDataOutput.writePathArgument(pathArgument);
+                }
+            });
         } catch (IOException e) {
             throw new EtcdException("YangInstanceIdentifier toByteSequence failed: " + path.toString(), e);
         }
     }
 
+    /**
+     * Key of the child of the node with the given key, see {@link #toByteSequence(YangInstanceIdentifier)}.
+     * This only encodes the child's path argument, instead of the entire path again.
+     */
+    ByteSequence toChildByteSequence(ByteSequence parentKey, PathArgument childPathArgument) throws EtcdException {
+        return parentKey.concat(toByteSequence(childPathArgument));
+    }
+
+    private ByteSequence toByteSequence(PathArgument pathArgument) throws EtcdException {
+        // list entries and leaf-list entries are too many and too rarely re-written to be worth caching
+        boolean isCacheable = pathArgument instanceof NodeIdentifier || pathArgument instanceof AugmentationIdentifier;
+        if (isCacheable) {
+            ByteSequence cached = pathArgumentCache.getIfPresent(pathArgument);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        try {
+            ByteSequence byteSequence = toByteSequence(false,
+                nodeDataOutput -> nodeDataOutput.writePathArgument(pathArgument));
+            if (isCacheable) {
+                pathArgumentCache.put(pathArgument, byteSequence);
+            }
+            return byteSequence;
+        } catch (IOException e) {
+            throw new EtcdException("PathArgument toByteSequence failed: " + pathArgument, e);
+        }
+    }
+
+    /**
+     * Value of a node.  The values of leaf and leaf-list entry nodes are written by the {@link SchemaAwareValueCodec}
+     * (if the format version allows it, and it supports their type), all others by the
+     * {@link ShallowNormalizedNodeDataOutputWriter}; including their leaf children, if the {@link StorageGranularity}
+     * says so.
+     */
+    @VisibleForTesting
+    ByteSequence toByteSequence(YangInstanceIdentifier path, NormalizedNode<?, ?> node) throws EtcdException {
+        if (isAggregatingLeaves(path, node)) {
+            try {
+                return toByteSequence(false, true, nodeDataOutput -> nodeDataOutput.writeNormalizedNode(node));
+            } catch (IOException e) {
+                throw new EtcdException("NormalizedNode toByteSequence failed: " + node.toString(), e);
+            }
+        }
+        SchemaAwareValueCodec codec = schemaAwareValueCodec;
+        if (codec == null || formatVersion < EtcdFormatVersion.SCHEMA_AWARE
+                || !(node instanceof LeafNode || node instanceof LeafSetEntryNode)) {
+            return toByteSequence(node);
+        }
+        TypeDefinition<?> type = codec.getLeafType(path);
+        Object value = node.getValue();
+        if (type == null || !codec.canWrite(type, value)) {
+            return toByteSequence(node);
+        }
+        try {
+            return toByteSequence(false, nodeDataOutput -> {
+                nodeDataOutput.writeByte(node instanceof LeafNode
+                        ? SchemaAwareValueCodec.LEAF_NODE : SchemaAwareValueCodec.LEAF_SET_ENTRY_NODE);
+                codec.write(nodeDataOutput, type, value);
+            });
+        } catch (IOException e) {
+            throw new EtcdException("NormalizedNode toByteSequence failed: " + node.toString(), e);
+        }
+    }
+
     private ByteSequence toByteSequence(NormalizedNode<?, ?> node) throws EtcdException {
         try {
             return toByteSequence(false, nodeDataOutput -> nodeDataOutput.writeNormalizedNode(node));
@@ -257,35 +787,240 @@ class EtcdYangKV implements AutoCloseable {
         }
     }
 
+    /**
+     * Path of a key, which is either the key of a node, or that of one of the chunks of its value.
+     */
+    private static final class KeyPath {
+        static final int NOT_A_CHUNK = -1;
+
+        final YangInstanceIdentifier path;
+        final int chunkIndex;
+
+        KeyPath(YangInstanceIdentifier path, int chunkIndex) {
+            this.path = path;
+            this.chunkIndex = chunkIndex;
+        }
+
+        boolean isChunk() {
+            return chunkIndex != NOT_A_CHUNK;
+        }
+    }
+
+    /**
+     * Key, and value (unless it is a delete), of a watch event or of the initial load.  These are first all decoded
+     * (in parallel, see {@link EtcdYangKV#decodeAll(List)}), and then applied to the DataTreeModification in order
+     * (in a single thread).  A failure to decode is only thrown when applying, so in the same order as before.
+     */
+    static final class DecodedKeyValue {
+        final ByteSequence key;
+        final @Nullable ByteSequence value;
+
+        // set by decode(), in a ForkJoinPool thread; visible after its invoke() returned
+        private @Nullable KeyPath keyPath;
+        private @Nullable NormalizedNode<?, ?> data;
+        private @Nullable EtcdException exception;
+
+        DecodedKeyValue(ByteSequence key, @Nullable ByteSequence value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        KeyPath getKeyPath() throws EtcdException {
+            if (exception != null) {
+                throw exception;
+            }
+            return requireNonNull(keyPath, "keyPath, not decoded yet");
+        }
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private final class DecodeTask extends RecursiveAction {
+        private final List<DecodedKeyValue> keyValues;
+        private final int from;
+        private final int to;
+
+        DecodeTask(List<DecodedKeyValue> keyValues, int from, int to) {
+            this.keyValues = keyValues;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_DECODE_BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    decode(keyValues.get(i));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(keyValues, from, middle), new DecodeTask(keyValues, middle, to));
+            }
+        }
+    }
+
     public class EtcdTxn {
 
-        private final Txn txn;
+        private final OptionalLong baseRevision;
+        private final List<Cmp> cmpsList;
         private final List<Op> opsList;
+        private final Set<ByteSequence> keys;
+        private final Set<ByteSequence> prefixes;
+        // of the keys and values of the ops, so that EtcdGroupCommitter can keep its groups below etcd's request limit
+        private long opsBytes;
 
-        EtcdTxn() {
-            txn = etcd.txn();
-            // TODO txn.If();
+        EtcdTxn(OptionalLong baseRevision) {
+            this.baseRevision = baseRevision;
+            cmpsList = new ArrayList<>();
             opsList = new ArrayList<>();
+            keys = new HashSet<>();
+            prefixes = new HashSet<>();
         }
 
-        public void put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) throws EtcdException {
-            ByteSequence key = toByteSequence(path);
-            ByteSequence value = toByteSequence(data);
+        /**
+         * Put the node at the path.  A value too large for a single etcd key is split into chunks (see
+         * {@link ValueChunks}), if the format version is at least {@link EtcdFormatVersion#CHUNKED}.
+         * @param key the key of the path, see {@link EtcdYangKV#toByteSequence(YangInstanceIdentifier)}
+         *        and {@link EtcdYangKV#toChildByteSequence(ByteSequence, PathArgument)}
+         */
+        public void put(YangInstanceIdentifier path, ByteSequence key, NormalizedNode<?, ?> data,
+                @Nullable NormalizedNode<?, ?> dataBefore) throws EtcdException {
+            ByteSequence value = compress(toByteSequence(path, data));
+            if (addKey(key) && baseRevision.isPresent()) {
+                // the mod_revision of a key which was deleted since the base revision is 0, so the compare of
+                // addKey() does not detect that; compare its existence, so that a concurrent delete is not undone
+                if (dataBefore == null) {
+                    cmpsList.add(new Cmp(key, Cmp.Op.EQUAL, CmpTarget.version(0)));
+                } else if (hasOwnKey(path, dataBefore)) {
+                    cmpsList.add(new Cmp(key, Cmp.Op.GREATER, CmpTarget.version(0)));
+                }
+            }
+            if (!ValueChunks.needsChunks(value)) {
+                addPut(key, value);
+                // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
+                LOG.info("{} TXN put: {} ➠ {}", name, toStringable(key), toStringable(value));
+                if (formatVersion >= EtcdFormatVersion.CHUNKED && dataBefore != null
+                        && ValueChunks.mayNeedChunks(dataBefore)) {
+                    deleteChunks(key, 0);
+                }
+                return;
+            }
+            if (formatVersion < EtcdFormatVersion.CHUNKED) {
+                throw new EtcdException("Value of " + value.size() + " bytes is too large for a single etcd key, "
+                        + "and chunking it requires format version " + EtcdFormatVersion.CHUNKED
+                        + ", but this etcd cluster uses " + formatVersion + ": " + path);
+            }
+
+            List<ByteSequence> chunks = ValueChunks.split(value);
+            try {
+                addPut(key, ValueChunks.manifest(chunks.size(), value.size()));
+            } catch (IOException e) {
+                throw new EtcdException("Writing manifest of chunked value failed: " + path, e);
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                addPut(ValueChunks.chunkKey(key, i), chunks.get(i));
+            }
+            // the previous value may have had more chunks
+            deleteChunks(key, chunks.size());
+            LOG.info("{} TXN put: {} ➠ {} bytes in {} chunks", name, toStringable(key), value.size(), chunks.size());
+        }
+
+        private void addPut(ByteSequence key, ByteSequence value) {
             opsList.add(Op.put(key, value, PutOption.DEFAULT));
-            // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
-            LOG.info("{} TXN put: {} ➠ {}", name, toStringable(key), toStringable(value));
+            opsBytes += key.size() + value.size();
         }
 
-        public void delete(YangInstanceIdentifier path) throws EtcdException {
-            ByteSequence key = toByteSequence(path);
-            opsList.add(Op.delete(key, DeleteOption.DEFAULT));
+        /**
+         * Delete the chunks of the value of the key from the chunk with the index onwards.
+         * NB: The chunks are not in the keys, as they are only ever touched together with their node's key.
+         */
+        private void deleteChunks(ByteSequence key, int fromIndex) {
+            ByteSequence fromKey = ValueChunks.chunkKey(key, fromIndex);
+            ByteSequence endKey = ValueChunks.chunkKeysEnd(key);
+            opsList.add(Op.delete(fromKey, DeleteOption.newBuilder().withRange(endKey).build()));
+            opsBytes += fromKey.size() + endKey.size();
+        }
+
+        /**
+         * Delete the node with the key, and all of its descendants, in a single (range) operation.
+         */
+        public void delete(ByteSequence key) {
+            // the key of the node is a prefix of the keys of all of its descendants, see toByteSequence()
+            opsList.add(Op.delete(key, DeleteOption.newBuilder().withPrefix(key).build()));
+            // the range end of the prefix has the same size as the key
+            opsBytes += 2L * key.size();
+            addKey(key);
+            prefixes.add(key);
             // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
             LOG.info("{} TXN delete: {}", name, toStringable(key));
         }
 
+        /**
+         * Require the node with the key, which is not modified itself but has modified descendants, to still exist
+         * (if it was based on a revision), so that these are not written below a node which was concurrently
+         * deleted.  Nodes which may not have a key of their own (see {@link EtcdYangKV#hasOwnKey(
+         * YangInstanceIdentifier, NormalizedNode)}) are not checked.
+         */
+        public void requireExisting(YangInstanceIdentifier path, ByteSequence key, NormalizedNode<?, ?> dataBefore) {
+            if (baseRevision.isPresent() && !keys.contains(key) && hasOwnKey(path, dataBefore)) {
+                cmpsList.add(new Cmp(key, Cmp.Op.GREATER, CmpTarget.version(0)));
+            }
+        }
+
+        /**
+         * Add the key to the keys touched by this transaction.
+         * @return whether it was not touched before
+         */
+        private boolean addKey(ByteSequence key) {
+            if (!keys.add(key)) {
+                return false;
+            }
+            if (baseRevision.isPresent()) {
+                // the key must not have been modified by anyone since the revision our changes are based on
+                // NB: A key which was deleted since then has no mod_revision anymore, so that is not detected here;
+                // put() and requireExisting() compare the version (which is 0 for a deleted key) for that
+                cmpsList.add(new Cmp(key, Cmp.Op.LESS, CmpTarget.modRevision(baseRevision.getAsLong() + 1)));
+            }
+            return true;
+        }
+
+        /**
+         * Commit this transaction.  If it was based on a revision and any of the keys it touches (including the
+         * descendants of the nodes it deletes) were modified since then, the returned TxnResponse
+         * {@link TxnResponse#isSucceeded()} is false, and nothing is changed.
+         */
         public @CheckReturnValue CompletionStage<TxnResponse> commit() {
-            txn.Then(opsList.toArray(new Op[opsList.size()]));
-            return txn.commit();
+            if (!baseRevision.isPresent() || prefixes.isEmpty()) {
+                return groupCommitter.commit(cmpsList, opsList, opsBytes, keys, prefixes);
+            }
+            return groupCommitter.commit(descendantCmps(), opsList, opsBytes, keys, prefixes);
+        }
+
+        /**
+         * Compares guarding the range deletes against a concurrent modification of any descendant of the deleted
+         * nodes, which would otherwise be silently lost.  The jetcd Cmp has no range end, so this first looks up
+         * (at most) one key below each deleted prefix which was modified after the base revision, and compares
+         * it like the other keys, which fails the Txn.  NB: A descendant which is created in between this lookup
+         * and the Txn itself is not detected.
+         */
+        private CompletionStage<List<Cmp>> descendantCmps() {
+            long nextRevision = baseRevision.getAsLong() + 1;
+            List<CompletableFuture<GetResponse>> lookups = new ArrayList<>(prefixes.size());
+            for (ByteSequence prefix : prefixes) {
+                lookups.add(etcd.get(prefix, GetOption.newBuilder().withPrefix(prefix).withKeysOnly(true)
+                        .withLimit(1).withMinModRevision(nextRevision).build()));
+            }
+            return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[lookups.size()])).thenApply(
+                ignored -> {
+                    List<Cmp> cmps = new ArrayList<>(cmpsList);
+                    for (CompletableFuture<GetResponse> lookup : lookups) {
+                        for (KeyValue kv : lookup.join().getKvs()) {
+                            LOG.info("{} TXN delete conflicts with modification of: {}",
+                                    name, toStringable(kv.getKey()));
+                            cmps.add(new Cmp(kv.getKey(), Cmp.Op.LESS, CmpTarget.modRevision(nextRevision)));
+                        }
+                    }
+                    return cmps;
+                });
         }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableMap;
+import io.etcd.jetcd.ByteSequence;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+
+/**
+ * Local file with the content of the data stores at an etcd revision, so that a restarting node can load it
+ * and only watch etcd for what changed since that revision, instead of reading back all of its content.
+ *
+ * <p>The content is written in the full (not the shallow) NormalizedNode stream format, which includes the
+ * QNames themselves instead of their QNameDictionary IDs, and the cluster ID of the etcd server, so that a
+ * snapshot is never applied on top of another etcd cluster than the one it was taken from.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class LocalSnapshotFile {
+
+    private static final int MAGIC = 0x4F444C53; // "ODLS"
+    private static final byte FORMAT = 1;
+
+    private final Path file;
+
+    LocalSnapshotFile(Path file) {
+        this.file = requireNonNull(file, "file");
+    }
+
+    Path getPath() {
+        return file;
+    }
+
+    /**
+     * Read the snapshot, if there is one.
+     * @throws IOException if the file exists but could not be read
+     */
+    synchronized Optional<Snapshot> read() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            byte format = input.readByte();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported snapshot format " + format + " in " + file);
+            }
+            long clusterId = input.readLong();
+            long revision = input.readLong();
+            int count = input.readInt();
+            NormalizedNodeInputStreamReader reader = new NormalizedNodeInputStreamReader(input, false) { };
+            ImmutableMap.Builder<ByteSequence, NormalizedNode<?, ?>> roots = ImmutableMap.builder();
+            for (int i = 0; i < count; i++) {
+                byte[] prefix = new byte[input.readUnsignedByte()];
+                input.readFully(prefix);
+                NormalizedNode<?, ?> root = reader.readNormalizedNode();
+                if (root == null) {
+                    throw new IOException("Missing root node in snapshot file: " + file);
+                }
+                roots.put(ByteSequence.from(prefix), root);
+            }
+            return Optional.of(new Snapshot(clusterId, revision, roots.build()));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write the snapshot.  It's first written to a temporary file which then replaces the previous snapshot,
+     * so that a crash while writing never leaves a partial snapshot behind.
+     */
+    synchronized void write(Snapshot snapshot) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeByte(FORMAT);
+            output.writeLong(snapshot.getClusterId());
+            output.writeLong(snapshot.getRevision());
+            output.writeInt(snapshot.getRoots().size());
+            NormalizedNodeOutputStreamWriter writer = new NormalizedNodeOutputStreamWriter(output) { };
+            for (Map.Entry<ByteSequence, NormalizedNode<?, ?>> root : snapshot.getRoots().entrySet()) {
+                byte[] prefix = root.getKey().getBytes();
+                output.writeByte(prefix.length);
+                output.write(prefix);
+                writer.writeNormalizedNode(root.getValue());
+            }
+        }
+        Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Content of the data stores (by their etcd key prefix) at an etcd revision.
+     */
+    static final class Snapshot {
+
+        private final long clusterId;
+        private final long revision;
+        private final ImmutableMap<ByteSequence, NormalizedNode<?, ?>> roots;
+
+        Snapshot(long clusterId, long revision, Map<ByteSequence, NormalizedNode<?, ?>> roots) {
+            this.clusterId = clusterId;
+            this.revision = revision;
+            this.roots = ImmutableMap.copyOf(roots);
+        }
+
+        long getClusterId() {
+            return clusterId;
+        }
+
+        long getRevision() {
+            return revision;
+        }
+
+        ImmutableMap<ByteSequence, NormalizedNode<?, ?>> getRoots() {
+            return roots;
+        }
+
+        Optional<NormalizedNode<?, ?>> getRoot(ByteSequence prefix) {
+            return Optional.ofNullable(roots.get(prefix));
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{clusterId=" + clusterId + ", revision=" + revision + ", prefixes=" + roots.size() + "}";
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.errorprone.annotations.Var;
+import java.util.Optional;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNodeContainer;
+import org.opendaylight.yangtools.yang.data.api.schema.OrderedNodeContainer;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+
+/**
+ * Computes the differences between two trees of NormalizedNodes, as the writes and deletes which turn one into the
+ * other.  This is used to bring the DataTree up to date with etcd, when the watch cannot catch up with the changes
+ * in between, by writing only what actually changed (so that DataTreeChangeListeners are only notified about that),
+ * instead of the entire content.
+ */
+// intentionally just .impl package-local, for now
+final class NormalizedNodeDiff {
+
+    private NormalizedNodeDiff() { }
+
+    /**
+     * Write the differences from before to after into the modification.
+     * @return the number of nodes which were written or deleted
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int writeDifferences(DataTreeModification mod, YangInstanceIdentifier path,
+            NormalizedNode<?, ?> before, NormalizedNode<?, ?> after) {
+        if (before.equals(after)) {
+            return 0;
+        }
+        // the order of the children of ordered lists cannot be changed by writing children, only the entire node
+        if (!(before instanceof NormalizedNodeContainer) || !(after instanceof NormalizedNodeContainer)
+                || before instanceof OrderedNodeContainer || !before.getIdentifier().equals(after.getIdentifier())) {
+            mod.write(path, after);
+            return 1;
+        }
+
+        @Var int count = 0;
+        NormalizedNodeContainer<?, PathArgument, NormalizedNode<?, ?>> beforeContainer =
+                (NormalizedNodeContainer) before;
+        NormalizedNodeContainer<?, PathArgument, NormalizedNode<?, ?>> afterContainer =
+                (NormalizedNodeContainer) after;
+        for (NormalizedNode<?, ?> afterChild : afterContainer.getValue()) {
+            PathArgument childId = afterChild.getIdentifier();
+            Optional<NormalizedNode<?, ?>> beforeChild = beforeContainer.getChild(childId);
+            if (beforeChild.isPresent()) {
+                count += writeDifferences(mod, path.node(childId), beforeChild.get(), afterChild);
+            } else {
+                mod.write(path.node(childId), afterChild);
+                count++;
+            }
+        }
+        for (NormalizedNode<?, ?> beforeChild : beforeContainer.getValue()) {
+            PathArgument childId = beforeChild.getIdentifier();
+            if (!afterContainer.getChild(childId).isPresent()) {
+                mod.delete(path.node(childId));
+                count++;
+            }
+        }
+        return count;
+    }
+}
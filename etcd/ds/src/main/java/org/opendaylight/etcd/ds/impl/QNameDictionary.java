@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.yangtools.yang.common.QName;
+
+/**
+ * Dictionary mapping {@link QName}s to small integer codes, which the serialization writes instead of
+ * the namespace, revision and local name strings.
+ *
+ * <p>This implementation just allocates codes locally, in memory, and is thus only suitable for tests.
+ * See {@link EtcdQNameDictionary} for the one which is shared by all nodes of a cluster.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class QNameDictionary {
+
+    private final Map<QName, Integer> codes = new ConcurrentHashMap<>();
+    private final Map<Integer, QName> qnames = new ConcurrentHashMap<>();
+
+    int getCode(QName qname) throws IOException {
+        Integer code = codes.get(qname);
+        return code != null ? code : allocate(qname);
+    }
+
+    QName getQName(int code) throws IOException {
+        QName qname = qnames.get(code);
+        return qname != null ? qname : load(code);
+    }
+
+    /**
+     * Allocate codes for those of the QNames which are not yet known locally, in advance of
+     * {@link #getCode(QName)}, so that that then does not block.
+     * @return future which completes once all of them have been allocated
+     */
+    CompletionStage<Void> allocateAsync(Collection<QName> qnamesToAllocate) {
+        for (QName qname : qnamesToAllocate) {
+            try {
+                getCode(qname);
+            } catch (IOException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Allocate a new code for a QName which is not yet known locally.
+     * Implementations must {@link #register(int, QName)} it.
+     */
+    protected synchronized int allocate(QName qname) throws IOException {
+        Integer existingCode = codes.get(qname);
+        if (existingCode != null) {
+            return existingCode;
+        }
+        int code = qnames.size();
+        register(code, qname);
+        return code;
+    }
+
+    /**
+     * Load the QName for a code which is not yet known locally.
+     * Implementations must {@link #register(int, QName)} it.
+     */
+    protected QName load(int code) throws IOException {
+        throw new IOException("Unknown QName code: " + code);
+    }
+
+    protected void register(int code, QName qname) {
+        qnames.put(code, qname);
+        codes.put(qname, code);
+    }
+
+    protected boolean isKnownCode(int code) {
+        return qnames.containsKey(code);
+    }
+
+    protected @Nullable Integer getKnownCode(QName qname) {
+        return codes.get(qname);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import io.etcd.jetcd.ByteSequence;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.opendaylight.yangtools.yang.common.QName;
+
+/**
+ * Input stream and {@link ShallowNormalizedNodeInputStreamReader} which are reused to read many keys and values,
+ * e.g. all those of a batch of watch events, instead of allocating new streams and a new reader (with its internal
+ * maps and builders) for each of them.  This is the reading counterpart of {@link ReusableByteSequenceOutput}.
+ *
+ * <p>NB: jetcd's ByteSequence does not expose its underlying ByteString, so {@link ByteSequence#getBytes()} still
+ * copies the bytes once; everything after that is done in place.
+ */
+@NotThreadSafe
+// intentionally just .impl package-local, for now
+final class ReusableByteSequenceInput {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RepositionableByteArrayInputStream bytes = new RepositionableByteArrayInputStream();
+    private final ShallowNormalizedNodeInputStreamReader reader;
+
+    private boolean inUse;
+
+    ReusableByteSequenceInput(QNameDictionary dictionary) {
+        reader = new ShallowNormalizedNodeInputStreamReader(new DataInputStream(bytes), dictionary);
+    }
+
+    /**
+     * Start reading a key or value.
+     * @param byteSequence the key or value
+     * @param offset number of bytes at the start of byteSequence to skip
+     * @param firstQName see {@link ShallowNormalizedNodeInputStreamReader#reset(QName)}
+     */
+    void start(ByteSequence byteSequence, int offset, @Nullable QName firstQName) {
+        if (inUse) {
+            throw new IllegalStateException("Still in use, finish() not called");
+        }
+        inUse = true;
+        bytes.reposition(byteSequence.getBytes(), offset);
+        reader.reset(firstQName);
+    }
+
+    /**
+     * The reader, which is only valid between {@link #start(ByteSequence, int, QName)} and {@link #finish()}.
+     */
+    ShallowNormalizedNodeInputStreamReader reader() {
+        return reader;
+    }
+
+    /**
+     * Number of bytes which have not been read yet.
+     */
+    int available() {
+        return bytes.available();
+    }
+
+    /**
+     * The next byte, without reading it, or -1 if there are no more bytes.
+     */
+    int peek() {
+        bytes.mark(0);
+        int next = bytes.read();
+        bytes.reset();
+        return next;
+    }
+
+    void finish() {
+        // don't hold on to the last read bytes, which could be large
+        bytes.reposition(EMPTY, 0);
+        inUse = false;
+    }
+
+    /**
+     * Whether this can be used again to read another key or value.
+     * This is not the case if an earlier use failed, as the reader may then be in an unknown state.
+     */
+    boolean isReusable() {
+        return !inUse;
+    }
+
+    private static final class RepositionableByteArrayInputStream extends ByteArrayInputStream {
+
+        RepositionableByteArrayInputStream() {
+            super(EMPTY);
+        }
+
+        void reposition(byte[] newBytes, int offset) {
+            this.buf = newBytes;
+            this.pos = offset;
+            this.mark = offset;
+            this.count = newBytes.length;
+        }
+    }
+}
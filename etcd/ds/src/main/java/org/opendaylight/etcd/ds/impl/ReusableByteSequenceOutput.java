@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+
+/**
+ * Output buffer and {@link ShallowNormalizedNodeDataOutputWriter} which are reused to write many keys and values,
+ * instead of allocating new streams and a new writer for each of them.  The bytes written are copied exactly once,
+ * into the ByteString of the returned {@link ByteSequence} (instead of into a byte[] by
+ * {@link ByteArrayOutputStream#toByteArray()}, and then again into a ByteString by {@link ByteSequence#from(byte[])}).
+ */
+@NotThreadSafe
+// intentionally just .impl package-local, for now
+final class ReusableByteSequenceOutput {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // beyond this, we rather let the buffer be garbage collected, instead of holding on to it (per thread)
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream(INITIAL_CAPACITY);
+    private final DataOutputStream dataOutput = new DataOutputStream(buffer);
+    private final ShallowNormalizedNodeDataOutputWriter nodeDataOutput;
+
+    private boolean inUse;
+
+    ReusableByteSequenceOutput(QNameDictionary dictionary) {
+        nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput, dictionary);
+    }
+
+    /**
+     * Start writing a new key or value.
+     * @param writeLeafChildren see {@link ShallowNormalizedNodeDataOutputWriter#reset(boolean)}
+     * @return the writer, which is only valid until {@link #toByteSequence()} is called
+     */
+    NormalizedNodeDataOutput start(boolean writeLeafChildren) {
+        if (inUse) {
+            throw new IllegalStateException("Still in use, toByteSequence() not called");
+        }
+        inUse = true;
+        buffer.reset();
+        nodeDataOutput.reset(writeLeafChildren);
+        return nodeDataOutput;
+    }
+
+    ByteSequence toByteSequence() {
+        inUse = false;
+        return ByteSequence.from(buffer.toByteString());
+    }
+
+    /**
+     * Whether this can be used again to write another key or value.  This is not the case if
+     * an earlier use failed (and the writer may thus be in an unknown state), or if it grew too large.
+     */
+    boolean isReusable() {
+        return !inUse && buffer.capacity() <= MAX_RETAINED_CAPACITY;
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        ByteString toByteString() {
+            return ByteString.copyFrom(buf, 0, count);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
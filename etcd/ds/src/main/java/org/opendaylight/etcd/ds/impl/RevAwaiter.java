@@ -7,11 +7,14 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import com.google.errorprone.annotations.Var;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.time.Duration;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.concurrent.ThreadSafe;
@@ -21,6 +24,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Concurrency utility to await availability of certain revisions.
  *
+ * <p>This is lock-free: Waiters are futures in a concurrent skip list keyed by revision (shared by all
+ * waiters for the same revision), which an update completes and removes, up to the updated revision.
+ *
  * @author Michael Vorburger.ch
  */
 @ThreadSafe
@@ -28,35 +34,23 @@ class RevAwaiter {
 
     // TODO This must take possible long overflow of the long revision into account...
 
-    // TODO is it better to use java.util.concurrent.locks.Condition instead of Object.wait() - why?
-
     private static final Logger LOG = LoggerFactory.getLogger(RevAwaiter.class);
 
-    private static final AwaitableRev[] EMPTY_ARRAY = new AwaitableRev[0];
-
-    private static class AwaitableRev {
-        final long rev;
-
-        AwaitableRev(long rev) {
-            this.rev = rev;
-        }
-
-        @Override
-        public String toString() {
-            return "AwaitableRev-" + rev;
-        }
-    }
+    private static final CompletionStage<Void> COMPLETED = CompletableFuture.completedFuture(null);
 
     private final AtomicLong currentRev = new AtomicLong();
-    private final Queue<AwaitableRev> pq = new PriorityQueue<>((o1, o2) -> Long.compare(o1.rev, o2.rev));
+    // System.nanoTime() when currentRev was last known to be (almost) up-to-date with the etcd server; only ever
+    // set after a round trip to the server or a progress notification, never by merely applying a revision, because
+    // a node which lags behind the watch (e.g. with many queued up responses) applies revisions all the time
+    private final AtomicLong lastConfirmedNanos = new AtomicLong();
+    private volatile boolean hasBeenConfirmed = false;
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters = new ConcurrentSkipListMap<>();
     private final String nodeName;
 
     RevAwaiter(String nodeName) {
         this.nodeName = nodeName;
     }
 
-    // shut up FindBugs, I'm a grown up knowing what I'm doing here - I hope! ;-)
-    @SuppressFBWarnings({ "NO_NOTIFY_NOT_NOTIFYALL", "NN_NAKED_NOTIFY" })
     void update(long rev) {
         // Testing here is for debugging problems during development.
         // This IllegalStateException is not expected to ever happen in production,
@@ -70,47 +64,87 @@ class RevAwaiter {
             }
         });
 
-        AwaitableRev[] pqCopy;
-        synchronized (pq) {
-            pqCopy = pq.toArray(EMPTY_ARRAY);
+        completeWaiters(rev);
+
+        LOG.info("{} update: {}", nodeName, rev);
+    }
+
+    /**
+     * Records a watch progress notification, which means that all changes up to the given revision
+     * have been received.  Unlike {@link #update(long)}, the revision may be the same as the current one,
+     * because progress notifications are also sent when nothing changed.  This does confirm that the current
+     * revision was up-to-date, because such a notification is only sent once the watcher has caught up.
+     */
+    void progress(long rev) {
+        long previous = currentRev.getAndAccumulate(rev, Math::max);
+        confirmed(System.nanoTime());
+        if (rev > previous) {
+            completeWaiters(rev);
         }
-        for (AwaitableRev awaitable : pqCopy) {
-            if (rev >= awaitable.rev) {
-                synchronized (awaitable) {
-                    awaitable.notify();
-                }
-            } else {
-                break;
-            }
+        LOG.debug("{} progress: {}", nodeName, rev);
+    }
+
+    private void completeWaiters(long rev) {
+        // NB: This must happen AFTER currentRev was set, see awaitAsync()
+        ConcurrentNavigableMap<Long, CompletableFuture<Void>> satisfied = waiters.headMap(rev, true);
+        for (Map.Entry<Long, CompletableFuture<Void>> waiter = satisfied.pollFirstEntry(); waiter != null;
+                waiter = satisfied.pollFirstEntry()) {
+            waiter.getValue().complete(null);
         }
+    }
 
-        LOG.info("{} update: {}", nodeName, rev);
+    /**
+     * Obtain the latest revision which has been applied locally.
+     */
+    long getCurrentRev() {
+        return currentRev.get();
     }
 
-    void await(long rev, Duration maxWaitTime) throws TimeoutException, InterruptedException {
+    /**
+     * Await the local application of a revision, without blocking.
+     *
+     * @param rev the revision to await
+     * @return future which completes once the revision has been applied (never exceptionally)
+     */
+    CompletionStage<Void> awaitAsync(long rev) {
         if (currentRev.get() >= rev) {
-            return;
+            return COMPLETED;
         }
-        AwaitableRev awaitable = new AwaitableRev(rev);
-        synchronized (pq) {
-            pq.add(awaitable);
+        CompletableFuture<Void> future = waiters.computeIfAbsent(rev, newRev -> new CompletableFuture<>());
+        // An update() may have happened between the check above and adding the waiter, and missed it
+        if (currentRev.get() >= rev) {
+            waiters.remove(rev, future);
+            future.complete(null);
         }
-        synchronized (awaitable) {
-            // account for possible spurious wake up
-            @Var long now = System.nanoTime();
-            long deadline = now + maxWaitTime.toNanos();
-            while (currentRev.get() < rev && now < deadline) {
-                // http://errorprone.info/bugpattern/WaitNotInLoop
-                awaitable.wait((deadline - now) / 1000000);
-                now = System.nanoTime();
-            }
-            if (now >= deadline) {
-                throw new TimeoutException();
-            }
-            // else it's a real awaitable.notify(), not spurious nor timeout, and we return to caller.
+        return future;
+    }
+
+    void await(long rev, Duration maxWaitTime) throws TimeoutException, InterruptedException {
+        try {
+            awaitAsync(rev).toCompletableFuture().get(maxWaitTime.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("awaitAsync() futures are never completed exceptionally", e);
         }
     }
 
+    /**
+     * Records that the current revision was up-to-date with the etcd server at the given time.
+     * @param nanoTime a {@link System#nanoTime()}, typically taken just before asking the server for its revision
+     */
+    void confirmed(long nanoTime) {
+        lastConfirmedNanos.accumulateAndGet(nanoTime, Math::max);
+        hasBeenConfirmed = true;
+    }
+
+    /**
+     * Checks whether the current revision was up-to-date with the etcd server recently enough.
+     * @param maxStaleness how long ago it may at most have been confirmed
+     * @return true if it was confirmed less than maxStaleness ago
+     */
+    boolean isFresherThan(Duration maxStaleness) {
+        return hasBeenConfirmed && System.nanoTime() - lastConfirmedNanos.get() < maxStaleness.toNanos();
+    }
+
     @Override
     public String toString() {
         return "RevAwaiter: currentRev=" + currentRev;
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.utils.Varints;
+import org.opendaylight.yangtools.yang.common.Empty;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextNode;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextTree;
+import org.opendaylight.yangtools.yang.model.api.DataSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.LeafListSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.LeafSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.BooleanTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EmptyTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition.EnumPair;
+import org.opendaylight.yangtools.yang.model.api.type.IdentityrefTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int8TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.StringTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint8TypeDefinition;
+
+/**
+ * Codec for the values of leaf and leaf-list entry nodes which uses the YANG schema to know their type.
+ * Unlike {@link ShallowNormalizedNodeDataOutputWriter}, this therefore writes no value type tag; integers are
+ * written as varints (ZigZag encoded if signed), enumerations as the value of their enum, and identityrefs
+ * as their {@link QNameDictionary} code.
+ *
+ * <p>Values are prefixed by {@link #LEAF_NODE} or {@link #LEAF_SET_ENTRY_NODE}, which are distinct from all of
+ * the node types written by the ShallowNormalizedNodeDataOutputWriter, so that readers can tell which of the
+ * two formats a value is in.  Types which this codec does not (yet) support, such as unions, leafrefs,
+ * decimal64 or binary, are still written by the ShallowNormalizedNodeDataOutputWriter.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class SchemaAwareValueCodec {
+
+    // NodeTypes.LEAF_NODE & NodeTypes.LEAF_SET_ENTRY_NODE, with the 0x40 bit set (which no NodeTypes has)
+    static final byte LEAF_NODE = 0x40 | 1;
+    static final byte LEAF_SET_ENTRY_NODE = 0x40 | 3;
+
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private final DataSchemaContextTree schemaContextTree;
+    private final QNameDictionary dictionary;
+
+    SchemaAwareValueCodec(SchemaContext schemaContext, QNameDictionary dictionary) {
+        this.schemaContextTree = DataSchemaContextTree.from(requireNonNull(schemaContext, "schemaContext"));
+        this.dictionary = requireNonNull(dictionary, "dictionary");
+    }
+
+    /**
+     * Type of the leaf or leaf-list at the path, or null if the path is not a (known) leaf or leaf-list.
+     */
+    @Nullable TypeDefinition<?> getLeafType(YangInstanceIdentifier path) {
+        DataSchemaContextNode<?> contextNode = schemaContextTree.getChild(path);
+        if (contextNode == null) {
+            return null;
+        }
+        DataSchemaNode schemaNode = contextNode.getDataSchemaNode();
+        if (schemaNode instanceof LeafSchemaNode) {
+            return ((LeafSchemaNode) schemaNode).getType();
+        } else if (schemaNode instanceof LeafListSchemaNode) {
+            return ((LeafListSchemaNode) schemaNode).getType();
+        } else {
+            return null;
+        }
+    }
+
+    boolean canWrite(TypeDefinition<?> type, Object value) {
+        if (type instanceof BooleanTypeDefinition) {
+            return value instanceof Boolean;
+        } else if (type instanceof Int8TypeDefinition) {
+            return value instanceof Byte;
+        } else if (type instanceof Int16TypeDefinition || type instanceof Uint8TypeDefinition) {
+            return value instanceof Short;
+        } else if (type instanceof Int32TypeDefinition || type instanceof Uint16TypeDefinition) {
+            return value instanceof Integer;
+        } else if (type instanceof Int64TypeDefinition || type instanceof Uint32TypeDefinition) {
+            return value instanceof Long;
+        } else if (type instanceof Uint64TypeDefinition) {
+            return value instanceof BigInteger && ((BigInteger) value).signum() >= 0
+                    && ((BigInteger) value).bitLength() <= 64;
+        } else if (type instanceof StringTypeDefinition) {
+            return value instanceof String;
+        } else if (type instanceof EnumTypeDefinition) {
+            return value instanceof String && getEnumPair((EnumTypeDefinition) type, (String) value) != null;
+        } else if (type instanceof IdentityrefTypeDefinition) {
+            return value instanceof QName;
+        } else if (type instanceof EmptyTypeDefinition) {
+            return value instanceof Empty;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Write the value.  Must only be called if {@link #canWrite(TypeDefinition, Object)}.
+     */
+    void write(DataOutput output, TypeDefinition<?> type, Object value) throws IOException {
+        if (type instanceof BooleanTypeDefinition) {
+            output.writeBoolean((Boolean) value);
+        } else if (type instanceof Uint8TypeDefinition) {
+            output.writeByte((Short) value);
+        } else if (type instanceof Int8TypeDefinition || type instanceof Int16TypeDefinition
+                || type instanceof Int32TypeDefinition || type instanceof Int64TypeDefinition) {
+            Varints.writeSignedVarLong(output, ((Number) value).longValue());
+        } else if (type instanceof Uint16TypeDefinition || type instanceof Uint32TypeDefinition
+                || type instanceof Uint64TypeDefinition) {
+            Varints.writeUnsignedVarLong(output, ((Number) value).longValue());
+        } else if (type instanceof StringTypeDefinition) {
+            byte[] bytes = ((String) value).getBytes(UTF_8);
+            Varints.writeUnsignedVarInt(output, bytes.length);
+            output.write(bytes);
+        } else if (type instanceof EnumTypeDefinition) {
+            EnumPair enumPair = requireNonNull(getEnumPair((EnumTypeDefinition) type, (String) value));
+            Varints.writeSignedVarLong(output, enumPair.getValue());
+        } else if (type instanceof IdentityrefTypeDefinition) {
+            Varints.writeUnsignedVarInt(output, dictionary.getCode((QName) value));
+        } else if (!(type instanceof EmptyTypeDefinition)) {
+            throw new IllegalArgumentException("Unsupported type: " + type);
+        }
+    }
+
+    Object read(DataInput input, TypeDefinition<?> type) throws IOException {
+        if (type instanceof BooleanTypeDefinition) {
+            return input.readBoolean();
+        } else if (type instanceof Uint8TypeDefinition) {
+            return (short) input.readUnsignedByte();
+        } else if (type instanceof Int8TypeDefinition) {
+            return (byte) Varints.readSignedVarLong(input);
+        } else if (type instanceof Int16TypeDefinition) {
+            return (short) Varints.readSignedVarLong(input);
+        } else if (type instanceof Int32TypeDefinition) {
+            return (int) Varints.readSignedVarLong(input);
+        } else if (type instanceof Int64TypeDefinition) {
+            return Varints.readSignedVarLong(input);
+        } else if (type instanceof Uint16TypeDefinition) {
+            return (int) Varints.readUnsignedVarLong(input);
+        } else if (type instanceof Uint32TypeDefinition) {
+            return Varints.readUnsignedVarLong(input);
+        } else if (type instanceof Uint64TypeDefinition) {
+            long value = Varints.readUnsignedVarLong(input);
+            return value >= 0 ? BigInteger.valueOf(value) : BigInteger.valueOf(value).add(TWO_TO_THE_64);
+        } else if (type instanceof StringTypeDefinition) {
+            byte[] bytes = new byte[Varints.readUnsignedVarInt(input)];
+            input.readFully(bytes);
+            return new String(bytes, UTF_8);
+        } else if (type instanceof EnumTypeDefinition) {
+            long value = Varints.readSignedVarLong(input);
+            for (EnumPair enumPair : ((EnumTypeDefinition) type).getValues()) {
+                if (enumPair.getValue() == value) {
+                    return enumPair.getName();
+                }
+            }
+            throw new IOException("Unknown value " + value + " of enumeration " + type);
+        } else if (type instanceof IdentityrefTypeDefinition) {
+            return dictionary.getQName(Varints.readUnsignedVarInt(input));
+        } else if (type instanceof EmptyTypeDefinition) {
+            return Empty.getInstance();
+        } else {
+            throw new IOException("Unsupported type: " + type);
+        }
+    }
+
+    private static @Nullable EnumPair getEnumPair(EnumTypeDefinition type, String name) {
+        for (EnumPair enumPair : type.getValues()) {
+            if (enumPair.getName().equals(name)) {
+                return enumPair;
+            }
+        }
+        return null;
+    }
+}
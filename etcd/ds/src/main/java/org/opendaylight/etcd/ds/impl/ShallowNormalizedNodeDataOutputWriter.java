@@ -13,6 +13,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
 import org.opendaylight.etcd.ds.stream.copypaste.TokenTypes;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWriter;
@@ -29,8 +30,28 @@ import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWrit
 @NotThreadSafe
 class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWriter {
 
-    ShallowNormalizedNodeDataOutputWriter(DataOutput output) {
+    private final QNameDictionary dictionary;
+
+    private boolean isWritingLeafChildren;
+    private boolean isFirstNode = true;
+
+    ShallowNormalizedNodeDataOutputWriter(DataOutput output, QNameDictionary dictionary) {
         super(output);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Prepare for writing the next node.
+     * @param writeLeafChildren whether the leaf children of a data container node are written as well
+     *        (see {@link StorageGranularity}); all of its other children are always skipped
+     */
+    void reset(boolean writeLeafChildren) {
+        this.isWritingLeafChildren = writeLeafChildren;
+        this.isFirstNode = true;
+    }
+
+    boolean isWritingLeafChildren() {
+        return isWritingLeafChildren;
     }
 
     @Override
@@ -47,6 +68,15 @@ class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWr
     protected void ensureHeaderWritten() {
     }
 
+    /**
+     * Writes the QName's code from the {@link QNameDictionary} as a varint, instead of its namespace, revision and
+     * local name strings.
+     */
+    @Override
+    protected void writeQName(QName qname) throws IOException {
+        Varints.writeUnsignedVarInt(this, dictionary.getCode(qname));
+    }
+
     @Override
     protected void writeString(String string) throws IOException {
         // similar to original but, for now, without the stringCodeMap compression
@@ -62,8 +92,14 @@ class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWr
 
     @Override
     protected void startNode(byte nodeType, QName qname) throws IOException {
-        // ditch the QName (startNode variant with only nodeType added in copypaste parent)
-        super.startNode(nodeType);
+        if (isFirstNode) {
+            // ditch the QName (startNode variant with only nodeType added in copypaste parent),
+            // because it's the last path argument of the key; but not that of any leaf children
+            isFirstNode = false;
+            super.startNode(nodeType);
+        } else {
+            super.startNode(nodeType, qname);
+        }
     }
 
 }
@@ -9,8 +9,10 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.DataInput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 
@@ -24,15 +26,26 @@ import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 @NotThreadSafe
 class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamReader {
 
+    private final QNameDictionary dictionary;
     private QName firstQName;
 
-    ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName) {
-        this(input);
+    ShallowNormalizedNodeInputStreamReader(DataInput input, QNameDictionary dictionary, QName firstQName) {
+        this(input, dictionary);
         this.firstQName = firstQName;
     }
 
-    ShallowNormalizedNodeInputStreamReader(DataInput input) {
+    ShallowNormalizedNodeInputStreamReader(DataInput input, QNameDictionary dictionary) {
         super(input, false);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Prepare to read another node, from wherever the DataInput given to the constructor has been repositioned to.
+     * @param newFirstQName see {@link #ShallowNormalizedNodeInputStreamReader(DataInput, QNameDictionary, QName)}
+     */
+    void reset(@Nullable QName newFirstQName) {
+        resetState();
+        this.firstQName = newFirstQName;
     }
 
     /**
@@ -49,7 +62,8 @@ class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamRe
             firstQName = null;
             return theFirstQName;
         } else {
-            return super.readQName();
+            // see ShallowNormalizedNodeDataOutputWriter#writeQName()
+            return dictionary.getQName(Varints.readUnsignedVarInt(this));
         }
     }
 }
@@ -9,26 +9,37 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.IOException;
 import javax.annotation.concurrent.NotThreadSafe;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
-import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeStreamWriter;
 import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWriter;
 
 /**
  * Iterator over a {@link NormalizedNode}.
- * Similar to {@link NormalizedNodeWriter}, but different in that this will skip children.
+ * Similar to {@link NormalizedNodeWriter}, but different in that this will skip children (other than leaves,
+ * if its ShallowNormalizedNodeDataOutputWriter is writing leaf children).
  *
  * @author Michael Vorburger.ch
  */
 @NotThreadSafe
 class ShallowNormalizedNodeWriter extends NormalizedNodeWriter {
 
-    ShallowNormalizedNodeWriter(NormalizedNodeStreamWriter writer) {
+    private final ShallowNormalizedNodeDataOutputWriter writer;
+
+    ShallowNormalizedNodeWriter(ShallowNormalizedNodeDataOutputWriter writer) {
         super(writer);
+        this.writer = writer;
     }
 
     @Override
     protected boolean writeChildren(Iterable<? extends NormalizedNode<?, ?>> children) throws IOException {
-        // like parent, just actually ignoring children
+        // like parent, just actually ignoring children (except leaves, if so configured)
+        if (writer.isWritingLeafChildren()) {
+            for (NormalizedNode<?, ?> child : children) {
+                if (child instanceof LeafNode) {
+                    write(child);
+                }
+            }
+        }
         getWriter().endNode();
         return true;
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+
+/**
+ * Policy of how fine-grained YANG data is stored in etcd.  By default, every node, down to each single leaf,
+ * is stored as its own key.  Data container nodes (containers, list entries etc.) can instead be stored
+ * as one value which includes their leaf children; their other children (containers, lists etc.) are always
+ * still stored under their own keys.  This means fewer keys, Txn operations and watch events, but a change of
+ * any one leaf re-writes the entire value with all leaves of its parent.
+ *
+ * <p>NB: All nodes of a cluster must use the same policy, as it determines how values are applied.
+ */
+@FunctionalInterface
+public interface StorageGranularity {
+
+    /**
+     * Every node is stored as its own key.
+     */
+    StorageGranularity EVERY_NODE = path -> false;
+
+    /**
+     * Each list entry is stored as one value including its leaves (which includes its keys).
+     */
+    StorageGranularity LIST_ENTRIES_WITH_LEAVES = path -> path.getLastPathArgument()
+            instanceof NodeIdentifierWithPredicates;
+
+    /**
+     * Whether the data container node at the path is stored as one value including its leaf children.
+     * This is ignored for nodes which are not data containers (such as lists, or leaves themselves).
+     */
+    boolean isAggregatingLeaves(YangInstanceIdentifier path);
+
+    /**
+     * Whether structural nodes (see StructuralNodes) which have any children are not stored themselves,
+     * because they can be recreated from the keys of their descendants.  This is off by default.
+     */
+    default boolean isElidingStructuralNodes() {
+        return false;
+    }
+
+    /**
+     * Like the given granularity, but also not storing structural nodes which have children.
+     */
+    static StorageGranularity elidingStructuralNodes(StorageGranularity granularity) {
+        return new StorageGranularity() {
+            @Override
+            public boolean isAggregatingLeaves(YangInstanceIdentifier path) {
+                return granularity.isAggregatingLeaves(path);
+            }
+
+            @Override
+            public boolean isElidingStructuralNodes() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Data container nodes with any of the given node types are stored as one value including their leaf children.
+     */
+    static StorageGranularity aggregatingLeavesOf(Set<QName> nodeTypes) {
+        ImmutableSet<QName> immutableNodeTypes = ImmutableSet.copyOf(nodeTypes);
+        return path -> {
+            PathArgument pathArgument = path.getLastPathArgument();
+            // NB: An AugmentationIdentifier has no node type
+            return pathArgument != null && !(pathArgument instanceof AugmentationIdentifier)
+                    && immutableNodeTypes.contains(pathArgument.getNodeType());
+        };
+    }
+}
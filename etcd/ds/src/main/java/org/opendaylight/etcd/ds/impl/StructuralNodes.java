@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.AugmentationNode;
+import org.opendaylight.yangtools.yang.data.api.schema.ChoiceNode;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafSetNode;
+import org.opendaylight.yangtools.yang.data.api.schema.MapNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextNode;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextTree;
+import org.opendaylight.yangtools.yang.model.api.ContainerSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Structural nodes are those whose existence carries no information beyond that of their children: lists and
+ * leaf-lists (not their entries), augmentations, choices and non-presence containers.  Such nodes are implied by
+ * any of their descendants, and can thus be recreated from their path and the schema.
+ * See {@link StorageGranularity#isElidingStructuralNodes()}.
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class StructuralNodes {
+
+    private final SchemaContext schemaContext;
+    private final DataSchemaContextTree schemaContextTree;
+
+    StructuralNodes(SchemaContext schemaContext) {
+        this.schemaContext = requireNonNull(schemaContext, "schemaContext");
+        this.schemaContextTree = DataSchemaContextTree.from(schemaContext);
+    }
+
+    boolean isStructural(YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+        if (node instanceof MapNode || node instanceof LeafSetNode || node instanceof AugmentationNode
+                || node instanceof ChoiceNode) {
+            return true;
+        }
+        if (node instanceof ContainerNode) {
+            DataSchemaContextNode<?> contextNode = schemaContextTree.getChild(path);
+            return contextNode != null && contextNode.getDataSchemaNode() instanceof ContainerSchemaNode
+                    && !((ContainerSchemaNode) contextNode.getDataSchemaNode()).isPresenceContainer();
+        }
+        return false;
+    }
+
+    /**
+     * The (empty) node at the path, with all of its ancestors, starting with the top-level one (which is the node
+     * of the first path argument).
+     */
+    NormalizedNode<?, ?> createWithAncestors(YangInstanceIdentifier path) {
+        return ImmutableNodes.fromInstanceId(schemaContext, path);
+    }
+}
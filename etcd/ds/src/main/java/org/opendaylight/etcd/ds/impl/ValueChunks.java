@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.Varints;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeWithValue;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNodeContainer;
+
+/**
+ * Storage of values which are too large for a single etcd key.  The value of the node's key is then only a manifest,
+ * which starts with the {@link #CHUNKED} marker byte, followed by the number of chunks and the total length of the
+ * value as varints.  The chunks are stored under the node's key followed by {@link #CHUNK_KEY_SEPARATOR} and the
+ * chunk's index as a (big-endian) int.  Because no path argument type is 0, chunk keys are distinguishable from the
+ * keys of children; they sort right after the node's key and before those of its children, and they are deleted
+ * together with the node's subtree.
+ */
+// intentionally just .impl package-local, for now
+final class ValueChunks {
+
+    // the 0x80 bit and 1, unlike the ValueCompression marker, and neither any NodeTypes nor SchemaAwareValueCodec
+    static final byte CHUNKED = (byte) 0x81;
+
+    // no PathArgumentTypes is 0
+    static final byte CHUNK_KEY_SEPARATOR = 0;
+
+    // well below etcd's default --max-request-bytes of 1.5 MB
+    // TODO make this a configuration option
+    static final int CHUNK_SIZE = 512 * 1024;
+
+    // generously more than what a node's type, QNames, type tags and lengths take
+    private static final int MAX_NODE_OVERHEAD = 64;
+
+    private static final ByteSequence CHUNKED_MARKER = ByteSequences.fromBytes(CHUNKED);
+
+    private ValueChunks() { }
+
+    static boolean isChunked(ByteSequence value) {
+        return value.startsWith(CHUNKED_MARKER);
+    }
+
+    static boolean needsChunks(ByteSequence value) {
+        return value.size() > CHUNK_SIZE;
+    }
+
+    static List<ByteSequence> split(ByteSequence value) {
+        byte[] bytes = value.getBytes();
+        List<ByteSequence> chunks = new ArrayList<>(bytes.length / CHUNK_SIZE + 1);
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, bytes.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(bytes, offset, chunk, 0, length);
+            chunks.add(ByteSequence.from(chunk));
+        }
+        return chunks;
+    }
+
+    static ByteSequence manifest(int chunkCount, int totalLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(11);
+        DataOutputStream dataOutput = new DataOutputStream(bytes);
+        dataOutput.writeByte(CHUNKED);
+        Varints.writeUnsignedVarInt(dataOutput, chunkCount);
+        Varints.writeUnsignedVarInt(dataOutput, totalLength);
+        return ByteSequence.from(bytes.toByteArray());
+    }
+
+    static ByteSequence chunkKey(ByteSequence key, int index) {
+        return ByteSequences.append(key, CHUNK_KEY_SEPARATOR,
+                (byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index);
+    }
+
+    /**
+     * End (exclusive) of the range of all chunk keys of the node with the key.
+     */
+    static ByteSequence chunkKeysEnd(ByteSequence key) {
+        return ByteSequences.append(key, (byte) (CHUNK_KEY_SEPARATOR + 1));
+    }
+
+    /**
+     * Read the chunk index from a key, after its path arguments.
+     */
+    static int readChunkIndex(DataInput input) throws IOException {
+        byte separator = input.readByte();
+        if (separator != CHUNK_KEY_SEPARATOR) {
+            throw new IOException("Not a chunk key separator: " + separator);
+        }
+        return input.readInt();
+    }
+
+    /**
+     * Whether the node could have been stored in chunks.  This is a cheap upper bound estimate (not counting
+     * compression), used to avoid deleting chunk keys when overwriting values which never had any.
+     */
+    static boolean mayNeedChunks(NormalizedNode<?, ?> node) {
+        @Var long maxSize = maxSize(node.getIdentifier());
+        if (node instanceof NormalizedNodeContainer) {
+            // only leaf children are ever part of a value, see StorageGranularity
+            for (NormalizedNode<?, ?> child : ((NormalizedNodeContainer<?, ?, ?>) node).getValue()) {
+                if (child instanceof LeafNode) {
+                    maxSize += maxSize(child.getIdentifier()) + maxSize(child.getValue());
+                }
+            }
+        } else {
+            maxSize += maxSize(node.getValue());
+        }
+        return maxSize > CHUNK_SIZE;
+    }
+
+    private static long maxSize(PathArgument pathArgument) {
+        @Var long maxSize = MAX_NODE_OVERHEAD;
+        if (pathArgument instanceof NodeIdentifierWithPredicates) {
+            for (Object keyValue : ((NodeIdentifierWithPredicates) pathArgument).getKeyValues().values()) {
+                maxSize += maxSize(keyValue);
+            }
+        } else if (pathArgument instanceof NodeWithValue) {
+            maxSize += maxSize(((NodeWithValue<?>) pathArgument).getValue());
+        }
+        return maxSize;
+    }
+
+    private static long maxSize(@Nullable Object value) {
+        if (value instanceof byte[]) {
+            return MAX_NODE_OVERHEAD + ((byte[]) value).length;
+        } else if (value instanceof Collection) {
+            @Var long maxSize = MAX_NODE_OVERHEAD;
+            for (Object element : (Collection<?>) value) {
+                maxSize += maxSize(element);
+            }
+            return maxSize;
+        } else {
+            // each char takes at most 3 bytes in (modified) UTF-8
+            return MAX_NODE_OVERHEAD + 3L * String.valueOf(value).length();
+        }
+    }
+
+    /**
+     * Reassembles chunked values, from a manifest followed by all of its chunks (in the order in which they were
+     * put in the same Txn, which is also the order of their keys).  This spans all watch events of a batch,
+     * respectively all key values of an initial load.
+     */
+    @NotThreadSafe
+    static final class Assembler {
+
+        private final Map<YangInstanceIdentifier, PendingValue> pendingValues = new HashMap<>();
+
+        void start(YangInstanceIdentifier path, ByteSequence manifest) throws IOException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(manifest.getBytes()));
+            input.readByte();
+            int chunkCount = Varints.readUnsignedVarInt(input);
+            int totalLength = Varints.readUnsignedVarInt(input);
+            if (chunkCount <= 0 || totalLength < 0) {
+                throw new IOException("Invalid manifest of chunked value: " + chunkCount + " chunks, "
+                        + totalLength + " bytes");
+            }
+            pendingValues.put(path, new PendingValue(chunkCount, totalLength));
+        }
+
+        /**
+         * Add a chunk.
+         * @return the complete value, if this was its last chunk; otherwise null
+         */
+        @Nullable ByteSequence add(YangInstanceIdentifier path, int index, ByteSequence chunk) throws IOException {
+            PendingValue pendingValue = pendingValues.get(path);
+            if (pendingValue == null) {
+                // chunk of a value which is not currently being reassembled; this cannot happen for PUT
+                // watch events, and the initial load only sees chunks not referred to by a manifest
+                // if they were left over from a larger value, which are then obsolete
+                return null;
+            }
+            if (index != pendingValue.nextIndex) {
+                throw new IOException("Expected chunk " + pendingValue.nextIndex + " but got " + index + ": " + path);
+            }
+            pendingValue.nextIndex++;
+            pendingValue.bytes.write(chunk.getBytes());
+            if (pendingValue.bytes.size() > pendingValue.totalLength) {
+                throw new IOException("Chunks are longer than the expected " + pendingValue.totalLength + " bytes: "
+                        + path);
+            }
+            if (pendingValue.nextIndex < pendingValue.chunkCount) {
+                return null;
+            }
+            pendingValues.remove(path);
+            if (pendingValue.bytes.size() != pendingValue.totalLength) {
+                throw new IOException("Expected " + pendingValue.totalLength + " bytes but chunks had "
+                        + pendingValue.bytes.size() + ": " + path);
+            }
+            return ByteSequence.from(pendingValue.bytes.toByteArray());
+        }
+
+        /**
+         * Check that all chunked values were complete, i.e. that none are still missing chunks.
+         */
+        void checkComplete() throws EtcdException {
+            if (!pendingValues.isEmpty()) {
+                throw new EtcdException("Chunks of values missing: " + pendingValues.keySet());
+            }
+        }
+    }
+
+    private static final class PendingValue {
+        final int chunkCount;
+        final int totalLength;
+        final ByteArrayOutputStream bytes;
+        int nextIndex;
+
+        PendingValue(int chunkCount, int totalLength) {
+            this.chunkCount = chunkCount;
+            this.totalLength = totalLength;
+            // not pre-sized to totalLength, which is not to be trusted before all chunks are there
+            this.bytes = new ByteArrayOutputStream(CHUNK_SIZE);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.Varints;
+
+/**
+ * Compression of large values.  A compressed value starts with the {@link #DEFLATED} marker byte, followed by
+ * the length of the uncompressed value as a varint, and then its bytes compressed by a {@link Deflater}.
+ * Values without that marker are not compressed, so both can coexist in etcd.
+ */
+// intentionally just .impl package-local, for now
+final class ValueCompression {
+
+    // the 0x80 bit, which neither any NodeTypes nor the SchemaAwareValueCodec markers have
+    static final byte DEFLATED = (byte) 0x80;
+
+    private static final ByteSequence DEFLATED_MARKER = ByteSequences.fromBytes(DEFLATED);
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private ValueCompression() { }
+
+    /**
+     * Compress the value, if it's at least threshold bytes long, and compressing it actually makes it smaller.
+     */
+    static ByteSequence compress(ByteSequence value, int threshold) throws IOException {
+        if (value.size() < threshold) {
+            return value;
+        }
+        byte[] bytes = value.getBytes();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+        DataOutputStream dataOutput = new DataOutputStream(compressed);
+        dataOutput.writeByte(DEFLATED);
+        Varints.writeUnsignedVarInt(dataOutput, bytes.length);
+
+        // BEST_SPEED, because this is on the commit path; most of the gain is in the first few levels anyway
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+                if (compressed.size() >= bytes.length) {
+                    // not worth it, e.g. because the value already is compressed (binary) data
+                    return value;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return ByteSequence.from(compressed.toByteArray());
+    }
+
+    static boolean isCompressed(ByteSequence value) {
+        return value.startsWith(DEFLATED_MARKER);
+    }
+
+    /**
+     * Decompress the value, if it is compressed; otherwise return it as is.
+     */
+    static ByteSequence decompress(ByteSequence value) throws IOException {
+        if (!isCompressed(value)) {
+            return value;
+        }
+        byte[] bytes = value.getBytes();
+        ByteArrayInputStream compressed = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+        int uncompressedLength = Varints.readUnsignedVarInt(new DataInputStream(compressed));
+        if (uncompressedLength < 0) {
+            throw new IOException("Invalid uncompressed length: " + uncompressedLength);
+        }
+        int offset = bytes.length - compressed.available();
+
+        byte[] uncompressed = new byte[uncompressedLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            @Var int length = 0;
+            while (length < uncompressedLength && !inflater.finished()) {
+                int inflated = inflater.inflate(uncompressed, length, uncompressedLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != uncompressedLength || !inflater.finished()) {
+                throw new IOException("Compressed value is truncated or corrupt, expected " + uncompressedLength
+                        + " bytes, but got " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed value is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteSequence.from(uncompressed);
+    }
+}
@@ -9,6 +9,8 @@ package org.opendaylight.etcd.ds.inmemory.copypaste;
 
 import static java.util.Objects.requireNonNull;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -175,9 +177,15 @@ public class InMemoryDOMDataStore extends TransactionReadyPrototype<String> impl
         return dataTree.prepare(modification);
     }
 
-    protected synchronized void commit(final DataTreeCandidate candidate) {
+    protected ListenableFuture<Void> commit(final SnapshotBackedWriteTransaction<String> transaction,
+            final DataTreeCandidate candidate) {
+        return commit(candidate);
+    }
+
+    protected synchronized ListenableFuture<Void> commit(final DataTreeCandidate candidate) {
         dataTree.commit(candidate);
         changePublisher.publishChange(candidate);
+        return Futures.immediateFuture(null);
     }
 
     protected void notifyListeners(final DataTreeCandidate candidate) {
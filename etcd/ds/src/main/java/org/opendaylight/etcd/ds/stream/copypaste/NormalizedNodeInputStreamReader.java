@@ -90,6 +90,15 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
         return readNormalizedNodeInternal();
     }
 
+    /**
+     * Forget the state kept from what was read so far, so that this can be re-used to read another stream
+     * (from the same DataInput, which the caller repositions).
+     */
+    protected void resetState() {
+        codedStringMap.clear();
+        lastLeafSetQName = null;
+    }
+
     protected void readSignatureMarkerAndVersionIfNeeded() throws IOException {
         if (readSignatureMarker) {
             readSignatureMarker = false;
@@ -66,4 +66,20 @@ public final class ByteSequences {
         System.arraycopy(bytes, 0, newBytes, base.getBytes().length, bytes.length);
         return ByteSequence.from(newBytes);
     }
+
+    /**
+     * End (exclusive) of the range of all keys which start with the prefix, as in etcd's range requests.
+     */
+    public static ByteSequence prefixEnd(ByteSequence prefix) {
+        byte[] bytes = prefix.getBytes();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] != (byte) 0xFF) {
+                byte[] end = Arrays.copyOf(bytes, i + 1);
+                end[i]++;
+                return ByteSequence.from(end);
+            }
+        }
+        // a prefix of only 0xFF bytes (or an empty one) has no end; by etcd convention, 0 means all keys after it
+        return fromBytes((byte) 0);
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.utils;
+
+import com.google.errorprone.annotations.Var;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Utilities to write and read variable-length unsigned integers (AKA varints, as in protobuf).
+ * Each byte holds 7 bits of the value, least significant first; the high bit is set on all but the last byte.
+ * Small values, which are the most common, thus only take a single byte.
+ */
+public final class Varints {
+
+    private Varints() { }
+
+    public static void writeUnsignedVarInt(DataOutput output, int value) throws IOException {
+        writeUnsignedVarLong(output, value & 0xFFFFFFFFL);
+    }
+
+    public static void writeUnsignedVarLong(DataOutput output, long value) throws IOException {
+        @Var long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            output.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        output.writeByte((int) remaining);
+    }
+
+    /**
+     * Write a signed value, ZigZag encoded so that small negative values also only take few bytes.
+     */
+    public static void writeSignedVarLong(DataOutput output, long value) throws IOException {
+        writeUnsignedVarLong(output, (value << 1) ^ (value >> 63));
+    }
+
+    public static int readUnsignedVarInt(DataInput input) throws IOException {
+        long value = readUnsignedVarLong(input);
+        if (value >>> 32 != 0) {
+            throw new IOException("varint is too large for an int: " + value);
+        }
+        return (int) value;
+    }
+
+    public static long readUnsignedVarLong(DataInput input) throws IOException {
+        @Var long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint, more than 10 bytes");
+    }
+
+    public static long readSignedVarLong(DataInput input) throws IOException {
+        long zigZag = readUnsignedVarLong(input);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
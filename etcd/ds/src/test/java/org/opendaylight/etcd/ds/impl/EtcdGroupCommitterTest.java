@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.utils.ByteSequences.fromBytes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.DeleteOption;
+import io.etcd.jetcd.options.PutOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for EtcdGroupCommitter.
+ */
+public class EtcdGroupCommitterTest {
+
+    private static final TxnResponse SUCCEEDED = txnResponse(true);
+    private static final TxnResponse FAILED = txnResponse(false);
+
+    private final List<TestTxn> txns = new ArrayList<>();
+    private final KV kv = mock(KV.class);
+
+    @Before
+    public void setUp() {
+        when(kv.txn()).thenAnswer(invocation -> {
+            TestTxn txn = new TestTxn();
+            txns.add(txn);
+            return txn;
+        });
+    }
+
+    @Test
+    public void testSingleCommitIsSentImmediately() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        CompletionStage<TxnResponse> future = commit(committer, 1);
+        assertThat(txns).hasSize(1);
+        assertThat(txns.get(0).ops).hasSize(1);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(future.toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void testCommitsWhileInFlightAreGrouped() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        CompletionStage<TxnResponse> future1 = commit(committer, 1);
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+        CompletionStage<TxnResponse> future3 = commit(committer, 3);
+        assertThat(txns).hasSize(1);
+
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(future1.toCompletableFuture().isDone()).isTrue();
+        assertThat(future2.toCompletableFuture().isDone()).isFalse();
+        assertThat(txns).hasSize(2);
+        assertThat(txns.get(1).ops).hasSize(2);
+
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(future2.toCompletableFuture().isDone()).isTrue();
+        assertThat(future3.toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void testDuplicateKeyStartsNewGroup() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        commit(committer, 1);
+        commit(committer, 2);
+        commit(committer, 2);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(1);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(txns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testKeyUnderDeletedPrefixStartsNewGroup() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        commit(committer, 9);
+        deletePrefix(committer, 1);
+        commit(committer, 2, 1);
+        commit(committer, 1, 2);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(2);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(txns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testMaxOpsPerTxn() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv,
+                2, EtcdGroupCommitter.DEFAULT_MAX_BYTES_PER_TXN, 1);
+        commit(committer, 1);
+        commit(committer, 2);
+        commit(committer, 3);
+        commit(committer, 4);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(2);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(txns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testMaxBytesPerTxn() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv,
+                EtcdGroupCommitter.DEFAULT_MAX_OPS_PER_TXN, 5, 1);
+        commit(committer, 1);
+        commit(committer, 2);
+        commit(committer, 3);
+        commit(committer, 4);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(2);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(txns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testSingleCommitOverMaxBytesIsSentAlone() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv,
+                EtcdGroupCommitter.DEFAULT_MAX_OPS_PER_TXN, 1, 1);
+        commit(committer, 1);
+        commit(committer, 2);
+        commit(committer, 3);
+        assertThat(txns.get(0).ops).hasSize(1);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(1);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(txns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testSingleFailureFailsOnlyItsCommit() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        CompletionStage<TxnResponse> future1 = commit(committer, 1);
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+        txns.get(0).future.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(future1.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(future2.toCompletableFuture().isDone()).isFalse();
+        assertThat(txns).hasSize(2);
+        txns.get(1).future.complete(SUCCEEDED);
+        assertThat(future2.toCompletableFuture().join().isSucceeded()).isTrue();
+    }
+
+    @Test
+    public void testFailureInGroupRetriesOneByOne() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        commit(committer, 1);
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+        CompletionStage<TxnResponse> future3 = commit(committer, 3);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).ops).hasSize(2);
+        txns.get(1).future.completeExceptionally(new IllegalStateException("request is too large"));
+        assertThat(future2.toCompletableFuture().isDone()).isFalse();
+        assertThat(future3.toCompletableFuture().isDone()).isFalse();
+
+        assertThat(txns.get(2).ops).hasSize(1);
+        txns.get(2).future.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(future2.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(future3.toCompletableFuture().isDone()).isFalse();
+
+        assertThat(txns.get(3).ops).hasSize(1);
+        txns.get(3).future.complete(SUCCEEDED);
+        assertThat(future3.toCompletableFuture().join().isSucceeded()).isTrue();
+    }
+
+    @Test
+    public void testConflictInGroupRetriesOneByOne() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        commit(committer, 1);
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+        CompletionStage<TxnResponse> future3 = commit(committer, 3);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(txns.get(1).cmps).hasSize(2);
+        txns.get(1).future.complete(FAILED);
+        assertThat(future2.toCompletableFuture().isDone()).isFalse();
+
+        assertThat(txns.get(2).ops).hasSize(1);
+        assertThat(txns.get(2).cmps).hasSize(1);
+        txns.get(2).future.complete(FAILED);
+        assertThat(future2.toCompletableFuture().join().isSucceeded()).isFalse();
+        assertThat(future3.toCompletableFuture().isDone()).isFalse();
+
+        assertThat(txns.get(3).ops).hasSize(1);
+        txns.get(3).future.complete(SUCCEEDED);
+        assertThat(future3.toCompletableFuture().join().isSucceeded()).isTrue();
+    }
+
+    @Test
+    public void testCommitsWaitForPendingCompares() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        CompletableFuture<List<Cmp>> cmps = new CompletableFuture<>();
+        ByteSequence keyBytes = fromBytes((byte) 1);
+        CompletionStage<TxnResponse> future1 = committer.commit(cmps,
+                ImmutableList.of(Op.put(keyBytes, keyBytes, PutOption.DEFAULT)), 2 * keyBytes.size(),
+                ImmutableSet.of(keyBytes), ImmutableSet.of());
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+        assertThat(txns).isEmpty();
+
+        cmps.complete(ImmutableList.of(new Cmp(keyBytes, Cmp.Op.LESS, CmpTarget.modRevision(1))));
+        assertThat(txns).hasSize(1);
+        assertThat(txns.get(0).cmps).hasSize(2);
+        assertThat(txns.get(0).ops).hasSize(2);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(future1.toCompletableFuture().isDone()).isTrue();
+        assertThat(future2.toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void testFailedComparesFailOnlyTheirCommit() {
+        EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", kv);
+        CompletableFuture<List<Cmp>> cmps = new CompletableFuture<>();
+        ByteSequence keyBytes = fromBytes((byte) 1);
+        CompletionStage<TxnResponse> future1 = committer.commit(cmps,
+                ImmutableList.of(Op.put(keyBytes, keyBytes, PutOption.DEFAULT)), 2 * keyBytes.size(),
+                ImmutableSet.of(keyBytes), ImmutableSet.of());
+        CompletionStage<TxnResponse> future2 = commit(committer, 2);
+
+        cmps.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(future1.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(txns).hasSize(1);
+        assertThat(txns.get(0).ops).hasSize(1);
+        txns.get(0).future.complete(SUCCEEDED);
+        assertThat(future2.toCompletableFuture().join().isSucceeded()).isTrue();
+    }
+
+    private static CompletionStage<TxnResponse> commit(EtcdGroupCommitter committer, int key) {
+        ByteSequence keyBytes = fromBytes((byte) key);
+        return committer.commit(ImmutableList.of(new Cmp(keyBytes, Cmp.Op.LESS, CmpTarget.modRevision(1))),
+                ImmutableList.of(Op.put(keyBytes, keyBytes, PutOption.DEFAULT)), 2 * keyBytes.size(),
+                ImmutableSet.of(keyBytes), ImmutableSet.of());
+    }
+
+    private static CompletionStage<TxnResponse> deletePrefix(EtcdGroupCommitter committer, int key) {
+        ByteSequence keyBytes = fromBytes((byte) key);
+        return committer.commit(ImmutableList.of(),
+                ImmutableList.of(Op.delete(keyBytes, DeleteOption.newBuilder().withPrefix(keyBytes).build())),
+                2 * keyBytes.size(), ImmutableSet.of(keyBytes), ImmutableSet.of(keyBytes));
+    }
+
+    private static CompletionStage<TxnResponse> commit(EtcdGroupCommitter committer, int key1, int key2) {
+        ByteSequence keyBytes = fromBytes((byte) key1, (byte) key2);
+        return committer.commit(ImmutableList.of(),
+                ImmutableList.of(Op.put(keyBytes, keyBytes, PutOption.DEFAULT)), 2 * keyBytes.size(),
+                ImmutableSet.of(keyBytes), ImmutableSet.of());
+    }
+
+    private static TxnResponse txnResponse(boolean succeeded) {
+        TxnResponse txnResponse = mock(TxnResponse.class);
+        when(txnResponse.isSucceeded()).thenReturn(succeeded);
+        return txnResponse;
+    }
+
+    private static class TestTxn implements Txn {
+        final List<Cmp> cmps = new ArrayList<>();
+        final List<Op> ops = new ArrayList<>();
+        final CompletableFuture<TxnResponse> future = new CompletableFuture<>();
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn If(Cmp... ifCmps) {
+            cmps.addAll(ImmutableList.copyOf(ifCmps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Then(Op... thenOps) {
+            ops.addAll(ImmutableList.copyOf(thenOps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Else(Op... elseOps) {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<TxnResponse> commit() {
+            return future;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
+import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendaylight.mdsal.common.api.CommitInfo;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link EtcdPipelinedDOMDataBroker}.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdPipelinedDOMDataBrokerTest {
+
+    private static final YangInstanceIdentifier PATH = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+
+    private final DOMStore store = mock(DOMStore.class);
+    private final EtcdPipelinedDOMDataBroker broker =
+            new EtcdPipelinedDOMDataBroker(ImmutableMap.of(CONFIGURATION, store), directExecutor());
+
+    @Test
+    public void testPhasesInOrder() throws Exception {
+        DOMStoreThreePhaseCommitCohort cohort = newCohort(true);
+        commit(cohort).get();
+
+        InOrder inOrder = inOrder(cohort);
+        inOrder.verify(cohort).canCommit();
+        inOrder.verify(cohort).preCommit();
+        inOrder.verify(cohort).commit();
+        verify(cohort, never()).abort();
+    }
+
+    @Test
+    public void testNextTransactionStartsBeforePreviousCommitCompleted() throws Exception {
+        DOMStoreThreePhaseCommitCohort cohort1 = newCohort(true);
+        SettableFuture<Void> commit1 = SettableFuture.create();
+        when(cohort1.commit()).thenReturn(commit1);
+        FluentFuture<? extends CommitInfo> future1 = commit(cohort1);
+
+        DOMStoreThreePhaseCommitCohort cohort2 = newCohort(true);
+        FluentFuture<? extends CommitInfo> future2 = commit(cohort2);
+
+        // the 2nd transaction was fully committed, while the commit of the 1st (sent before) is still outstanding
+        InOrder inOrder = inOrder(cohort1, cohort2);
+        inOrder.verify(cohort1).commit();
+        inOrder.verify(cohort2).canCommit();
+        assertThat(future1.isDone()).isFalse();
+        assertThat(future2.isDone()).isTrue();
+
+        commit1.set(null);
+        future1.get();
+    }
+
+    @Test
+    public void testAbortIfCanCommitFalse() throws Exception {
+        DOMStoreThreePhaseCommitCohort cohort = newCohort(false);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> commit(cohort).get());
+        assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+        verify(cohort, never()).preCommit();
+        verify(cohort, never()).commit();
+        verify(cohort).abort();
+    }
+
+    @Test
+    public void testAbortIfCommitFails() throws Exception {
+        DOMStoreThreePhaseCommitCohort cohort = newCohort(true);
+        when(cohort.commit()).thenReturn(Futures.immediateFailedFuture(new IllegalStateException("boum")));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> commit(cohort).get());
+        assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+        assertThat(e.getCause().getCause()).isInstanceOf(IllegalStateException.class);
+        verify(cohort).abort();
+    }
+
+    private FluentFuture<? extends CommitInfo> commit(DOMStoreThreePhaseCommitCohort cohort) {
+        DOMStoreWriteTransaction storeTransaction = mock(DOMStoreWriteTransaction.class);
+        when(storeTransaction.ready()).thenReturn(cohort);
+        when(store.newWriteOnlyTransaction()).thenReturn(storeTransaction);
+
+        DOMDataTreeWriteTransaction transaction = broker.newWriteOnlyTransaction();
+        transaction.put(CONFIGURATION, PATH, ImmutableNodes.containerNode(HelloWorldContainer.QNAME));
+        return transaction.commit();
+    }
+
+    private static DOMStoreThreePhaseCommitCohort newCohort(boolean canCommit) {
+        DOMStoreThreePhaseCommitCohort cohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        when(cohort.canCommit()).thenReturn(Futures.immediateFuture(canCommit));
+        when(cohort.preCommit()).thenReturn(Futures.immediateFuture(null));
+        when(cohort.commit()).thenReturn(Futures.immediateFuture(null));
+        when(cohort.abort()).thenReturn(Futures.immediateFuture(null));
+        return cohort;
+    }
+}
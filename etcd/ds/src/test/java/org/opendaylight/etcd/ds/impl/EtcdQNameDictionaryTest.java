@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+
+/**
+ * Unit test for EtcdQNameDictionary.
+ */
+public class EtcdQNameDictionaryTest {
+
+    private static final QName QNAME = HelloWorldContainer.QNAME;
+
+    private final List<TestTxn> txns = new ArrayList<>();
+    private final KV kv = mock(KV.class);
+    private final EtcdQNameDictionary dictionary = new EtcdQNameDictionary("TEST", kv);
+
+    @Test
+    public void testAllocate() throws IOException {
+        respondToTxns(txnResponse(true, ImmutableList.of()));
+        assertThat(dictionary.getCode(QNAME)).isEqualTo(0);
+        assertThat(dictionary.getCode(QNAME)).isEqualTo(0);
+        assertThat(dictionary.getQName(0)).isEqualTo(QNAME);
+        assertThat(txns).hasSize(1);
+    }
+
+    @Test
+    public void testQNameConcurrentlyAllocatedByAnotherNode() throws IOException {
+        respondToTxns(txnResponse(false, ImmutableList.of(keyValue(new byte[] { 7 }))));
+        assertThat(dictionary.getCode(QNAME)).isEqualTo(7);
+        assertThat(dictionary.getQName(7)).isEqualTo(QNAME);
+        assertThat(txns).hasSize(1);
+    }
+
+    @Test
+    public void testLoadUnknownCode() throws IOException {
+        GetResponse getResponse = getResponse(ImmutableList.of(keyValue(QNAME.toString().getBytes(UTF_8))));
+        when(kv.get(any(ByteSequence.class))).thenReturn(completedFuture(getResponse));
+        assertThat(dictionary.getQName(3)).isEqualTo(QNAME);
+        assertThat(dictionary.getCode(QNAME)).isEqualTo(3);
+    }
+
+    @Test
+    public void testAllocateAsync() throws Exception {
+        respondToTxns(txnResponse(true, ImmutableList.of()));
+        QName otherQName = QName.create(QNAME, "other");
+        dictionary.allocateAsync(ImmutableList.of(QNAME, otherQName)).toCompletableFuture().get();
+        assertThat(txns).hasSize(2);
+        assertThat(dictionary.getCode(QNAME)).isEqualTo(0);
+        assertThat(dictionary.getCode(otherQName)).isEqualTo(1);
+        assertThat(txns).hasSize(2);
+    }
+
+    @Test
+    public void testAllocateAsyncDoesNotBlock() throws Exception {
+        CompletableFuture<TxnResponse> response = new CompletableFuture<>();
+        respondToTxns(response);
+        QName otherQName = QName.create(QNAME, "other");
+        CompletableFuture<Void> allocated =
+                dictionary.allocateAsync(ImmutableList.of(QNAME, otherQName)).toCompletableFuture();
+        assertThat(allocated.isDone()).isFalse();
+        // the second allocation is only attempted after the first one, as both try the same next code
+        assertThat(txns).hasSize(1);
+
+        response.complete(txnResponse(true, ImmutableList.of()));
+        allocated.get();
+        assertThat(txns).hasSize(2);
+        assertThat(dictionary.getCode(otherQName)).isEqualTo(1);
+    }
+
+    @Test
+    public void testAllocateAsyncOfKnownQName() throws Exception {
+        respondToTxns(txnResponse(true, ImmutableList.of()));
+        dictionary.getCode(QNAME);
+        assertThat(dictionary.allocateAsync(ImmutableList.of(QNAME)).toCompletableFuture().isDone()).isTrue();
+        assertThat(txns).hasSize(1);
+    }
+
+    @Test
+    public void testLoadUnknownCodeInForkJoinPool() throws Exception {
+        GetResponse getResponse = getResponse(ImmutableList.of(keyValue(QNAME.toString().getBytes(UTF_8))));
+        when(kv.get(any(ByteSequence.class))).thenReturn(completedFuture(getResponse));
+        assertThat(ForkJoinPool.commonPool().submit(() -> dictionary.getQName(3)).get()).isEqualTo(QNAME);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadCodeNotInEtcd() throws IOException {
+        GetResponse getResponse = getResponse(ImmutableList.of());
+        when(kv.get(any(ByteSequence.class))).thenReturn(completedFuture(getResponse));
+        dictionary.getQName(3);
+    }
+
+    private void respondToTxns(TxnResponse response) {
+        respondToTxns(completedFuture(response));
+    }
+
+    private void respondToTxns(CompletableFuture<TxnResponse> response) {
+        when(kv.txn()).thenAnswer(invocation -> {
+            TestTxn txn = new TestTxn(response);
+            txns.add(txn);
+            return txn;
+        });
+    }
+
+    private static TxnResponse txnResponse(boolean succeeded, List<KeyValue> elseGetKvs) {
+        TxnResponse txnResponse = mock(TxnResponse.class);
+        when(txnResponse.isSucceeded()).thenReturn(succeeded);
+        List<GetResponse> getResponses = ImmutableList.of(getResponse(elseGetKvs));
+        when(txnResponse.getGetResponses()).thenReturn(getResponses);
+        return txnResponse;
+    }
+
+    private static GetResponse getResponse(List<KeyValue> kvs) {
+        GetResponse getResponse = mock(GetResponse.class);
+        when(getResponse.getKvs()).thenReturn(kvs);
+        return getResponse;
+    }
+
+    private static KeyValue keyValue(byte[] value) {
+        return new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder().setValue(ByteString.copyFrom(value)).build());
+    }
+
+    private static class TestTxn implements Txn {
+        final CompletableFuture<TxnResponse> response;
+
+        TestTxn(CompletableFuture<TxnResponse> response) {
+            this.response = response;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn If(Cmp... ifCmps) {
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Then(Op... thenOps) {
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Else(Op... elseOps) {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<TxnResponse> commit() {
+            return response;
+        }
+    }
+}
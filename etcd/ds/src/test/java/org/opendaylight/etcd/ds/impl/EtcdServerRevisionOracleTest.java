@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for EtcdServerRevisionOracle.
+ */
+public class EtcdServerRevisionOracleTest {
+
+    private final List<CompletableFuture<GetResponse>> gets = new ArrayList<>();
+    private final KV kv = mock(KV.class);
+    private EtcdServerRevisionOracle oracle;
+
+    @Before
+    public void setUp() {
+        when(kv.get(any(ByteSequence.class), any(GetOption.class))).thenAnswer(invocation -> {
+            CompletableFuture<GetResponse> future = new CompletableFuture<>();
+            gets.add(future);
+            return future;
+        });
+        oracle = new EtcdServerRevisionOracle(kv);
+    }
+
+    @Test
+    public void testSingleCaller() {
+        CompletionStage<Long> rev = oracle.getServerRevisionAsync();
+        assertThat(gets).hasSize(1);
+        gets.get(0).complete(getResponse(7));
+        assertThat(rev.toCompletableFuture().join()).isEqualTo(7L);
+    }
+
+    @Test
+    public void testCallersWhileInFlightShareNextRequest() {
+        CompletionStage<Long> rev1 = oracle.getServerRevisionAsync();
+        CompletionStage<Long> rev2 = oracle.getServerRevisionAsync();
+        CompletionStage<Long> rev3 = oracle.getServerRevisionAsync();
+        assertThat(gets).hasSize(1);
+
+        gets.get(0).complete(getResponse(7));
+        assertThat(rev1.toCompletableFuture().join()).isEqualTo(7L);
+        // the 2nd and 3rd callers must NOT get the revision of the request which was already in flight
+        assertThat(rev2.toCompletableFuture().isDone()).isFalse();
+        assertThat(gets).hasSize(2);
+
+        gets.get(1).complete(getResponse(8));
+        assertThat(rev2.toCompletableFuture().join()).isEqualTo(8L);
+        assertThat(rev3.toCompletableFuture().join()).isEqualTo(8L);
+        assertThat(gets).hasSize(2);
+    }
+
+    @Test
+    public void testFailure() {
+        CompletionStage<Long> rev1 = oracle.getServerRevisionAsync();
+        CompletionStage<Long> rev2 = oracle.getServerRevisionAsync();
+        gets.get(0).completeExceptionally(new IllegalStateException("boum"));
+        assertThat(rev1.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        gets.get(1).complete(getResponse(8));
+        assertThat(rev2.toCompletableFuture().join()).isEqualTo(8L);
+    }
+
+    private static GetResponse getResponse(long revision) {
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(revision);
+        GetResponse getResponse = mock(GetResponse.class);
+        when(getResponse.getHeader()).thenReturn(header);
+        return getResponse;
+    }
+}
@@ -24,6 +24,7 @@ import io.etcd.jetcd.watch.WatchEvent.EventType;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
@@ -49,6 +50,17 @@ public class EtcdWatcherSplittingConsumerTest {
         assertThat(operConsumer.counter.get()).isEqualTo(0L);
     }
 
+    @Test
+    public void testProgressNotification() throws EtcdException {
+        RevAwaiter revAwaiter = new RevAwaiter("TEST");
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(Optional.of(revAwaiter), consumers);
+        splitter.accept(1L, Lists.newArrayList(newWatchEvent(append(CONFIGURATION_PREFIX, (byte)123))));
+        splitter.accept(1L, Collections.emptyList());
+        splitter.accept(2L, Collections.emptyList());
+        assertThat(revAwaiter.getCurrentRev()).isEqualTo(2L);
+        assertThat(configConsumer.counter.get()).isEqualTo(1L);
+    }
+
     @Test
     public void testOnlyConfig() throws EtcdException {
         EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), consumers);
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.utils.ByteSequences.fromBytes;
+
+import com.google.common.collect.ImmutableList;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Watch;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.infrautils.utils.function.CheckedBiConsumer;
+
+/**
+ * Unit test for {@link EtcdWatcher}.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdWatcherTest {
+
+    private static final ByteSequence PREFIX = fromBytes((byte) 't');
+
+    private final Client client = mock(Client.class);
+    private final Watch watch = mock(Watch.class);
+    private final TestConsumer consumer = new TestConsumer();
+    private final AtomicLong resyncs = new AtomicLong();
+    private EtcdWatcher watcher;
+
+    @Before
+    public void before() {
+        when(client.getWatchClient()).thenReturn(watch);
+    }
+
+    @After
+    public void after() {
+        consumer.release.countDown();
+        watcher.close();
+    }
+
+    @Test
+    public void testMergesQueuedResponses() throws InterruptedException {
+        start(10, 1000);
+        List<WatchEvent> events2 = newEvents(2);
+        watcher.onResponse(1, 2, events2);
+        // while the 1st is being applied, further responses queue up
+        assertThat(consumer.firstAccepted.await(5, SECONDS)).isTrue();
+        List<WatchEvent> events3 = newEvents(3);
+        List<WatchEvent> events4 = newEvents(4);
+        List<WatchEvent> events5 = newEvents(5);
+        watcher.onResponse(1, 3, events3);
+        watcher.onResponse(1, 4, events4);
+        watcher.onResponse(1, 5, events5);
+        consumer.release.countDown();
+
+        assertAccepted(2, events2);
+        assertAccepted(5, ImmutableList.<WatchEvent>builder().addAll(events3).addAll(events4).addAll(events5).build());
+        assertThat(resyncs.get()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testFailedMergedResponsesAreResyncedInsteadOfReplayed() throws InterruptedException {
+        consumer.failMerged = true;
+        start(10, 1000);
+        List<WatchEvent> events2 = newEvents(2);
+        watcher.onResponse(1, 2, events2);
+        assertThat(consumer.firstAccepted.await(5, SECONDS)).isTrue();
+        List<WatchEvent> events3 = newEvents(3);
+        List<WatchEvent> events4 = newEvents(4);
+        watcher.onResponse(1, 3, events3);
+        watcher.onResponse(1, 4, events4);
+        consumer.release.countDown();
+
+        assertAccepted(2, events2);
+        // resynced, instead of applying them again one by one
+        verify(watch, timeout(5000).times(2)).watch(any(), any(), any());
+        assertThat(resyncs.get()).isEqualTo(1L);
+        assertThat(consumer.accepted).isEmpty();
+    }
+
+    @Test
+    public void testFailedResponseIsResyncedInsteadOfSkipped() throws InterruptedException {
+        consumer.release.countDown();
+        consumer.failingRevision = 3;
+        start(10, 1000);
+        List<WatchEvent> events2 = newEvents(2);
+        watcher.onResponse(1, 2, events2);
+        assertAccepted(2, events2);
+        watcher.onResponse(1, 3, newEvents(3));
+
+        // resynced, and watching again from after the revision which that caught up with
+        verify(watch, timeout(5000).times(2)).watch(any(), any(), any());
+        assertThat(resyncs.get()).isEqualTo(1L);
+        List<WatchEvent> events12 = newEvents(12);
+        watcher.onResponse(2, 12, events12);
+        assertAccepted(12, events12);
+    }
+
+    @Test
+    public void testResponsesOfPreviousWatchAreIgnored() throws InterruptedException {
+        consumer.release.countDown();
+        start(10, 1000);
+        ArgumentCaptor<Watch.Listener> listener = ArgumentCaptor.forClass(Watch.Listener.class);
+        verify(watch).watch(any(), any(), listener.capture());
+        listener.getValue().onError(new IllegalStateException("test"));
+        verify(watch, timeout(5000).times(2)).watch(any(), any(), any());
+
+        // a response of the failed watch which was still on its way
+        watcher.onResponse(1, 2, newEvents(2));
+        List<WatchEvent> events3 = newEvents(3);
+        watcher.onResponse(2, 3, events3);
+        assertAccepted(3, events3);
+        assertThat(resyncs.get()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testFullQueueDropsResponsesAndResyncs() throws InterruptedException {
+        start(2, 100);
+        List<WatchEvent> events2 = newEvents(2);
+        watcher.onResponse(1, 2, events2);
+        assertThat(consumer.firstAccepted.await(5, SECONDS)).isTrue();
+        List<WatchEvent> events3 = newEvents(3);
+        List<WatchEvent> events4 = newEvents(4);
+        watcher.onResponse(1, 3, events3);
+        watcher.onResponse(1, 4, events4);
+        // the queue is full now, so this blocks, but only until it times out, and then drops it and what follows
+        watcher.onResponse(1, 5, newEvents(5));
+        watcher.onResponse(1, 6, newEvents(6));
+        consumer.release.countDown();
+
+        assertAccepted(2, events2);
+        assertAccepted(4, ImmutableList.<WatchEvent>builder().addAll(events3).addAll(events4).build());
+        verify(watch, timeout(5000).times(2)).watch(any(), any(), any());
+        assertThat(resyncs.get()).isEqualTo(1L);
+        assertThat(consumer.accepted).isEmpty();
+    }
+
+    private void start(int queueCapacity, long enqueueTimeoutMs) {
+        watcher = new EtcdWatcher("test", client, PREFIX, consumer, () -> 1L, () -> {
+            resyncs.incrementAndGet();
+            return 11L;
+        }, queueCapacity, enqueueTimeoutMs);
+        watcher.start(2);
+    }
+
+    private void assertAccepted(long revision, List<WatchEvent> events) throws InterruptedException {
+        Accepted accepted = consumer.accepted.poll(5, SECONDS);
+        assertThat(accepted).isNotNull();
+        assertThat(accepted.revision).isEqualTo(revision);
+        assertThat(accepted.events).containsExactlyElementsIn(events).inOrder();
+    }
+
+    private static List<WatchEvent> newEvents(int revision) {
+        ByteSequence key = fromBytes((byte) 't', (byte) revision);
+        return ImmutableList.of(new WatchEvent(new KeyValue(
+                io.etcd.jetcd.api.KeyValue.newBuilder().setKey(ByteString.copyFrom(key.getBytes())).build()),
+                null, EventType.PUT));
+    }
+
+    private static final class Accepted {
+        final long revision;
+        final List<WatchEvent> events;
+
+        Accepted(long revision, List<WatchEvent> events) {
+            this.revision = revision;
+            this.events = events;
+        }
+    }
+
+    private static final class TestConsumer implements CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> {
+        final CountDownLatch firstAccepted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<Accepted> accepted = new LinkedBlockingQueue<>();
+        volatile boolean failMerged;
+        volatile long failingRevision = -1;
+
+        @Override
+        public void accept(Long revision, List<WatchEvent> events) throws EtcdException {
+            firstAccepted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new EtcdException("interrupted", e);
+            }
+            if ((failMerged && events.size() > 1) || revision.longValue() == failingRevision) {
+                throw new EtcdException("test");
+            }
+            accepted.add(new Accepted(revision, ImmutableList.copyOf(events)));
+        }
+    }
+}
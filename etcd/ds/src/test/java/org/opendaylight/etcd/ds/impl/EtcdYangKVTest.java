@@ -8,15 +8,37 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Random;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedKeyValue;
 import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.mdsal.binding.generator.impl.ModuleInfoBackedContext;
+import org.opendaylight.mdsal.binding.spec.reflect.BindingReflections;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.DataContainerChild;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.api.DataContainerNodeAttrBuilder;
 
 /**
  * Unit test for {@link EtcdYangKV}.
@@ -26,14 +48,314 @@ import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdent
 @SuppressWarnings("javadoc")
 public class EtcdYangKVTest {
 
+    private static final QName NAME_QNAME = QName.create(HelloWorldContainer.QNAME, "name");
+
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    private final EtcdYangKV etcdKV = new EtcdYangKV("Test", Mockito.mock(Client.class),
+            ByteSequences.fromBytes((byte)'t'), Mockito.mock(EtcdGroupCommitter.class), new QNameDictionary(),
+            StorageGranularity.EVERY_NODE);
+
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    private final EtcdYangKV aggregatingEtcdKV = new EtcdYangKV("Test", Mockito.mock(Client.class),
+            ByteSequences.fromBytes((byte)'t'), Mockito.mock(EtcdGroupCommitter.class), new QNameDictionary(),
+            StorageGranularity.aggregatingLeavesOf(ImmutableSet.of(HelloWorldContainer.QNAME)));
+
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    private final EtcdYangKV elidingEtcdKV = newElidingEtcdKV();
+
     @Test
     public void testYangInstanceIdentifierToAndFromByteSequence() throws EtcdException {
-        @SuppressWarnings("resource") // because Client is just mocked anyway
-        EtcdYangKV etcdKV = new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte)'t'));
         YangInstanceIdentifier path = YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(HelloWorldContainer.QNAME));
         ByteSequence byteSequence = etcdKV.toByteSequence(path);
         YangInstanceIdentifier path2 = etcdKV.fromByteSequenceToYangInstanceIdentifier(byteSequence);
         assertThat(path).named(ByteSequences.asString(byteSequence)).isEqualTo(path2);
     }
 
+    @Test
+    public void testNestedYangInstanceIdentifierToAndFromByteSequence() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.builder().node(HelloWorldContainer.QNAME)
+                .node(HelloWorldContainer.QNAME).build();
+        ByteSequence byteSequence = etcdKV.toByteSequence(path);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(byteSequence)).isEqualTo(path);
+    }
+
+    @Test
+    public void testParentKeyIsPrefixOfChildKey() throws EtcdException {
+        YangInstanceIdentifier parent = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier child = parent.node(HelloWorldContainer.QNAME);
+        ByteSequence parentKey = etcdKV.toByteSequence(parent);
+        ByteSequence childKey = etcdKV.toByteSequence(child);
+        assertThat(childKey.startsWith(parentKey)).isTrue();
+        assertThat(childKey.size()).isGreaterThan(parentKey.size());
+    }
+
+    @Test
+    public void testChildKeyIsParentKeyWithChildPathArgument() throws EtcdException {
+        YangInstanceIdentifier parent = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        NodeIdentifier childPathArgument = new NodeIdentifier(HelloWorldContainer.QNAME);
+        ByteSequence parentKey = etcdKV.toByteSequence(parent);
+        // twice, because the 2nd time the child path argument's encoding comes from the cache
+        assertThat(etcdKV.toChildByteSequence(parentKey, childPathArgument))
+                .isEqualTo(etcdKV.toByteSequence(parent.node(childPathArgument)));
+        assertThat(etcdKV.toChildByteSequence(parentKey, childPathArgument))
+                .isEqualTo(etcdKV.toByteSequence(parent.node(childPathArgument)));
+    }
+
+    @Test
+    public void testReusedOutputDoesNotChangeEarlierByteSequence() throws EtcdException {
+        YangInstanceIdentifier path1 = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        ByteSequence key1 = etcdKV.toByteSequence(path1);
+        byte[] key1Bytes = key1.getBytes();
+        etcdKV.toByteSequence(path1.node(HelloWorldContainer.QNAME));
+        assertThat(key1.getBytes()).isEqualTo(key1Bytes);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(key1)).isEqualTo(path1);
+    }
+
+    @Test
+    public void testReusedInputReadsSeveralByteSequences() throws EtcdException {
+        YangInstanceIdentifier path1 = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier path2 = path1.node(HelloWorldContainer.QNAME);
+        ByteSequence key1 = etcdKV.toByteSequence(path1);
+        ByteSequence key2 = etcdKV.toByteSequence(path2);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(key2)).isEqualTo(path2);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(key1)).isEqualTo(path1);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(key2)).isEqualTo(path2);
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testKeyWithWrongPrefix() throws EtcdException {
+        etcdKV.fromByteSequenceToYangInstanceIdentifier(ByteSequences.fromBytes((byte) 'x'));
+    }
+
+    @Test
+    public void testKeyUsesQNameCodesInsteadOfNamespace() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.builder().node(HelloWorldContainer.QNAME)
+                .node(HelloWorldContainer.QNAME).build();
+        // prefix, and for each of the 2 path arguments its type and its (1 byte) QName code
+        assertThat(etcdKV.toByteSequence(path).size()).isEqualTo(5);
+    }
+
+    @Test
+    public void testAggregatedLeavesAreWrittenWithTheirParent() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        ContainerNode container = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"));
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(path)).thenReturn(Optional.empty());
+
+        aggregatingEtcdKV.applyPut(dataTree, aggregatingEtcdKV.toByteSequence(path),
+                aggregatingEtcdKV.toByteSequence(path, container), new ValueChunks.Assembler());
+        Mockito.verify(dataTree).write(path, container);
+    }
+
+    @Test
+    public void testAggregatedLeavesMissingFromValueAreDeleted() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        ContainerNode emptyContainer = newHelloWorldContainer();
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(path)).thenReturn(
+                Optional.of(newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"))));
+
+        aggregatingEtcdKV.applyPut(dataTree, aggregatingEtcdKV.toByteSequence(path),
+                aggregatingEtcdKV.toByteSequence(path, emptyContainer), new ValueChunks.Assembler());
+        Mockito.verify(dataTree).delete(path.node(NAME_QNAME));
+        Mockito.verify(dataTree).merge(path, emptyContainer);
+    }
+
+    @Test
+    public void testNotAggregatedValueHasNoLeaves() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        ContainerNode container = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"));
+        assertThat(etcdKV.toByteSequence(path, container).size())
+                .isLessThan(aggregatingEtcdKV.toByteSequence(path, container).size());
+    }
+
+    @Test
+    public void testChunkedValueIsReassembled() throws EtcdException, IOException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(NAME_QNAME);
+        LeafNode<String> leaf = ImmutableNodes.leafNode(NAME_QNAME, Strings.repeat("x", ValueChunks.CHUNK_SIZE + 1));
+        ByteSequence key = etcdKV.toByteSequence(path);
+        ByteSequence value = etcdKV.toByteSequence(path, leaf);
+        assertThat(ValueChunks.needsChunks(value)).isTrue();
+        List<ByteSequence> chunks = ValueChunks.split(value);
+        assertThat(chunks).hasSize(2);
+
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        ValueChunks.Assembler assembler = new ValueChunks.Assembler();
+        etcdKV.applyPut(dataTree, key, ValueChunks.manifest(chunks.size(), value.size()), assembler);
+        etcdKV.applyPut(dataTree, ValueChunks.chunkKey(key, 0), chunks.get(0), assembler);
+        Mockito.verifyZeroInteractions(dataTree);
+        etcdKV.applyPut(dataTree, ValueChunks.chunkKey(key, 1), chunks.get(1), assembler);
+        Mockito.verify(dataTree).write(path, leaf);
+        assembler.checkComplete();
+    }
+
+    @Test
+    public void testValueTooLargeForOneKeyIsOnlyChunkedFromItsFormatVersion() throws EtcdException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(NAME_QNAME);
+        // random letters, so that even compressed (from COMPRESSED) the value is still too large for one key
+        Random random = new Random(0);
+        char[] letters = new char[2 * ValueChunks.CHUNK_SIZE];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = (char) ('a' + random.nextInt(26));
+        }
+        LeafNode<String> leaf = ImmutableNodes.leafNode(NAME_QNAME, new String(letters));
+        ByteSequence key = etcdKV.toByteSequence(path);
+
+        etcdKV.setFormatVersion(EtcdFormatVersion.SCHEMA_AWARE);
+        EtcdException e = assertThrows(EtcdException.class,
+            () -> etcdKV.newTransaction(OptionalLong.empty()).put(path, key, leaf, null));
+        assertThat(e.getMessage()).contains("format version " + EtcdFormatVersion.CHUNKED);
+
+        etcdKV.setFormatVersion(EtcdFormatVersion.CHUNKED);
+        etcdKV.newTransaction(OptionalLong.empty()).put(path, key, leaf, null);
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testChunkedValueWithMissingChunk() throws EtcdException, IOException {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(NAME_QNAME);
+        ValueChunks.Assembler assembler = new ValueChunks.Assembler();
+        etcdKV.applyPut(Mockito.mock(DataTreeModification.class), etcdKV.toByteSequence(path),
+                ValueChunks.manifest(2, ValueChunks.CHUNK_SIZE + 1), assembler);
+        assembler.checkComplete();
+    }
+
+    @Test
+    public void testDeleteOfChunkKeyIsIgnored() throws EtcdException {
+        ByteSequence key = etcdKV.toByteSequence(YangInstanceIdentifier.of(HelloWorldContainer.QNAME));
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        etcdKV.applyDelete(dataTree, ValueChunks.chunkKey(key, 0));
+        Mockito.verifyZeroInteractions(dataTree);
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testChunkKeyIsNotANodeKey() throws EtcdException {
+        ByteSequence key = etcdKV.toByteSequence(YangInstanceIdentifier.of(HelloWorldContainer.QNAME));
+        etcdKV.fromByteSequenceToYangInstanceIdentifier(ValueChunks.chunkKey(key, 0));
+    }
+
+    @Test
+    public void testDecodeAllInParallelThenApplyInOrder() throws EtcdException {
+        List<YangInstanceIdentifier> paths = new ArrayList<>();
+        List<DecodedKeyValue> keyValues = new ArrayList<>();
+        @Var YangInstanceIdentifier path = YangInstanceIdentifier.EMPTY;
+        for (int i = 0; i < 200; i++) {
+            path = path.node(HelloWorldContainer.QNAME);
+            paths.add(path);
+            keyValues.add(new DecodedKeyValue(etcdKV.toByteSequence(path), null));
+        }
+        etcdKV.decodeAll(keyValues);
+
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        for (DecodedKeyValue keyValue : keyValues) {
+            etcdKV.applyDelete(dataTree, keyValue);
+        }
+        InOrder inOrder = Mockito.inOrder(dataTree);
+        for (YangInstanceIdentifier expectedPath : paths) {
+            inOrder.verify(dataTree).delete(expectedPath);
+        }
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testDecodeFailureIsThrownWhenApplied() throws EtcdException {
+        List<DecodedKeyValue> keyValues = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keyValues.add(new DecodedKeyValue(ByteSequences.fromBytes((byte) 'x'), null));
+        }
+        etcdKV.decodeAll(keyValues);
+        etcdKV.applyDelete(Mockito.mock(DataTreeModification.class), keyValues.get(0));
+    }
+
+    @Test
+    public void testStructuralNodeWithChildrenIsElided() {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        LeafNode<String> leaf = ImmutableNodes.leafNode(NAME_QNAME, "hello");
+        assertThat(elidingEtcdKV.isElided(path, newHelloWorldContainer(leaf))).isTrue();
+        assertThat(elidingEtcdKV.isElided(path, newHelloWorldContainer())).isFalse();
+        assertThat(elidingEtcdKV.isElided(path.node(NAME_QNAME), leaf)).isFalse();
+        assertThat(etcdKV.isElided(path, newHelloWorldContainer(leaf))).isFalse();
+    }
+
+    @Test
+    public void testEmptyStructuralNode() {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        assertThat(elidingEtcdKV.isEmptyStructural(path, newHelloWorldContainer())).isTrue();
+        assertThat(elidingEtcdKV.isEmptyStructural(path, newHelloWorldContainer(
+                ImmutableNodes.leafNode(NAME_QNAME, "hello")))).isFalse();
+        assertThat(etcdKV.isEmptyStructural(path, newHelloWorldContainer())).isFalse();
+    }
+
+    @Test
+    public void testElidedAncestorIsRecreatedOnPut() throws EtcdException {
+        YangInstanceIdentifier containerPath = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier leafPath = containerPath.node(NAME_QNAME);
+        LeafNode<String> leaf = ImmutableNodes.leafNode(NAME_QNAME, "hello");
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(containerPath)).thenReturn(Optional.empty());
+
+        // as when reading back all keys, of which there is none for the elided container
+        elidingEtcdKV.applyPut(dataTree, elidingEtcdKV.toByteSequence(leafPath),
+                elidingEtcdKV.toByteSequence(leafPath, leaf), new ValueChunks.Assembler());
+        InOrder inOrder = Mockito.inOrder(dataTree);
+        inOrder.verify(dataTree).merge(containerPath, newHelloWorldContainer());
+        inOrder.verify(dataTree).write(leafPath, leaf);
+    }
+
+    @Test
+    public void testExistingAncestorIsNotRecreatedOnPut() throws EtcdException {
+        YangInstanceIdentifier containerPath = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier leafPath = containerPath.node(NAME_QNAME);
+        LeafNode<String> leaf = ImmutableNodes.leafNode(NAME_QNAME, "hello");
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(containerPath)).thenReturn(Optional.of(newHelloWorldContainer()));
+
+        elidingEtcdKV.applyPut(dataTree, elidingEtcdKV.toByteSequence(leafPath),
+                elidingEtcdKV.toByteSequence(leafPath, leaf), new ValueChunks.Assembler());
+        Mockito.verify(dataTree).write(leafPath, leaf);
+        Mockito.verify(dataTree, Mockito.never()).merge(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testEmptyStructuralAncestorIsDeletedOnDelete() throws EtcdException {
+        YangInstanceIdentifier containerPath = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier leafPath = containerPath.node(NAME_QNAME);
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(containerPath)).thenReturn(Optional.of(newHelloWorldContainer()));
+
+        elidingEtcdKV.applyDelete(dataTree, elidingEtcdKV.toByteSequence(leafPath));
+        InOrder inOrder = Mockito.inOrder(dataTree);
+        inOrder.verify(dataTree).delete(leafPath);
+        inOrder.verify(dataTree).delete(containerPath);
+    }
+
+    @Test
+    public void testNotEmptyStructuralAncestorIsKeptOnDelete() throws EtcdException {
+        YangInstanceIdentifier containerPath = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        YangInstanceIdentifier leafPath = containerPath.node(NAME_QNAME);
+        DataTreeModification dataTree = Mockito.mock(DataTreeModification.class);
+        Mockito.when(dataTree.readNode(containerPath)).thenReturn(
+                Optional.of(newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"))));
+
+        elidingEtcdKV.applyDelete(dataTree, elidingEtcdKV.toByteSequence(leafPath));
+        Mockito.verify(dataTree).delete(leafPath);
+        Mockito.verify(dataTree, Mockito.never()).delete(containerPath);
+    }
+
+    private static EtcdYangKV newElidingEtcdKV() {
+        EtcdYangKV kv = new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte)'t'),
+                Mockito.mock(EtcdGroupCommitter.class), new QNameDictionary(),
+                StorageGranularity.elidingStructuralNodes(StorageGranularity.EVERY_NODE));
+        ModuleInfoBackedContext moduleContext = ModuleInfoBackedContext.create();
+        moduleContext.addModuleInfos(BindingReflections.loadModuleInfos());
+        kv.setSchemaContext(moduleContext.tryToCreateSchemaContext().get());
+        return kv;
+    }
+
+    private static ContainerNode newHelloWorldContainer(DataContainerChild<?, ?>... children) {
+        DataContainerNodeAttrBuilder<NodeIdentifier, ContainerNode> builder = Builders.containerBuilder()
+                .withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME));
+        for (DataContainerChild<?, ?> child : children) {
+            builder.withChild(child);
+        }
+        return builder.build();
+    }
 }
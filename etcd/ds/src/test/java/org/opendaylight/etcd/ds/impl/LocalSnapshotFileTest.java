@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.etcd.ds.impl.LocalSnapshotFile.Snapshot;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link LocalSnapshotFile}.
+ */
+@SuppressWarnings("javadoc")
+public class LocalSnapshotFileTest {
+
+    private static final QName NAME_QNAME = QName.create(HelloWorldContainer.QNAME, "name");
+
+    public @Rule TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ContainerNode config = newHelloWorldContainer("hello");
+        ContainerNode oper = newHelloWorldContainer("world");
+        LocalSnapshotFile file = new LocalSnapshotFile(tempFolder.getRoot().toPath().resolve("snapshot"));
+        file.write(new Snapshot(123, 456, ImmutableMap.of(
+                EtcdDataStore.CONFIGURATION_PREFIX, config, EtcdDataStore.OPERATIONAL_PREFIX, oper)));
+
+        Snapshot snapshot = file.read().get();
+        assertThat(snapshot.getClusterId()).isEqualTo(123L);
+        assertThat(snapshot.getRevision()).isEqualTo(456L);
+        assertThat(snapshot.getRoot(EtcdDataStore.CONFIGURATION_PREFIX)).isEqualTo(Optional.of(config));
+        assertThat(snapshot.getRoot(EtcdDataStore.OPERATIONAL_PREFIX)).isEqualTo(Optional.of(oper));
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        LocalSnapshotFile file = new LocalSnapshotFile(tempFolder.getRoot().toPath().resolve("snapshot"));
+        file.write(new Snapshot(123, 1, ImmutableMap.of(
+                EtcdDataStore.CONFIGURATION_PREFIX, newHelloWorldContainer("hello"))));
+        file.write(new Snapshot(123, 2, ImmutableMap.of()));
+
+        Snapshot snapshot = file.read().get();
+        assertThat(snapshot.getRevision()).isEqualTo(2L);
+        assertThat(snapshot.getRoot(EtcdDataStore.CONFIGURATION_PREFIX)).isEqualTo(Optional.empty());
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        LocalSnapshotFile file = new LocalSnapshotFile(tempFolder.getRoot().toPath().resolve("snapshot"));
+        assertThat(file.read()).isEqualTo(Optional.empty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        Path path = tempFolder.newFile().toPath();
+        Files.write(path, new byte[] { 1, 2, 3, 4, 5 });
+        new LocalSnapshotFile(path).read();
+    }
+
+    private static ContainerNode newHelloWorldContainer(String name) {
+        return Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                .withChild(ImmutableNodes.leafNode(NAME_QNAME, name)).build();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.DataContainerChild;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.api.DataContainerNodeAttrBuilder;
+
+/**
+ * Unit test for {@link NormalizedNodeDiff}.
+ */
+@SuppressWarnings("javadoc")
+public class NormalizedNodeDiffTest {
+
+    private static final QName NAME_QNAME = QName.create(HelloWorldContainer.QNAME, "name");
+    private static final QName OTHER_QNAME = QName.create(HelloWorldContainer.QNAME, "other");
+
+    private static final YangInstanceIdentifier PATH =
+            YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(HelloWorldContainer.QNAME));
+
+    private final DataTreeModification mod = Mockito.mock(DataTreeModification.class);
+
+    @Test
+    public void testEqual() {
+        ContainerNode before = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"));
+        ContainerNode after = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"));
+        assertThat(NormalizedNodeDiff.writeDifferences(mod, PATH, before, after)).isEqualTo(0);
+        Mockito.verifyZeroInteractions(mod);
+    }
+
+    @Test
+    public void testChangedLeaf() {
+        LeafNode<String> otherLeaf = ImmutableNodes.leafNode(OTHER_QNAME, "unchanged");
+        LeafNode<String> newLeaf = ImmutableNodes.leafNode(NAME_QNAME, "world");
+        ContainerNode before = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"), otherLeaf);
+        ContainerNode after = newHelloWorldContainer(newLeaf, otherLeaf);
+        assertThat(NormalizedNodeDiff.writeDifferences(mod, PATH, before, after)).isEqualTo(1);
+        Mockito.verify(mod).write(PATH.node(NAME_QNAME), newLeaf);
+        Mockito.verifyNoMoreInteractions(mod);
+    }
+
+    @Test
+    public void testAddedAndRemovedLeaf() {
+        LeafNode<String> newLeaf = ImmutableNodes.leafNode(OTHER_QNAME, "added");
+        ContainerNode before = newHelloWorldContainer(ImmutableNodes.leafNode(NAME_QNAME, "hello"));
+        ContainerNode after = newHelloWorldContainer(newLeaf);
+        assertThat(NormalizedNodeDiff.writeDifferences(mod, PATH, before, after)).isEqualTo(2);
+        Mockito.verify(mod).write(PATH.node(OTHER_QNAME), newLeaf);
+        Mockito.verify(mod).delete(PATH.node(NAME_QNAME));
+        Mockito.verifyNoMoreInteractions(mod);
+    }
+
+    private static ContainerNode newHelloWorldContainer(DataContainerChild<?, ?>... children) {
+        DataContainerNodeAttrBuilder<NodeIdentifier, ContainerNode> builder = Builders.containerBuilder()
+                .withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME));
+        for (DataContainerChild<?, ?> child : children) {
+            builder.withChild(child);
+        }
+        return builder.build();
+    }
+}
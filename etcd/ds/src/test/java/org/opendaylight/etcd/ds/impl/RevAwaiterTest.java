@@ -7,12 +7,14 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.time.Duration;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import org.junit.Rule;
@@ -83,4 +85,51 @@ public class RevAwaiterTest {
         executor.awaitTermination(5, MILLISECONDS);
     }
 
+    @Test public void testNotFreshBeforeFirstUpdate() {
+        assertThat(awaiter.isFresherThan(Duration.ofDays(1))).isFalse();
+    }
+
+    @Test public void testNotFreshAfterUpdate() {
+        awaiter.update(1);
+        assertThat(awaiter.isFresherThan(Duration.ofHours(1))).isFalse();
+    }
+
+    @Test public void testFreshAfterConfirmed() {
+        awaiter.update(1);
+        awaiter.confirmed(System.nanoTime());
+        assertThat(awaiter.isFresherThan(Duration.ofDays(1))).isTrue();
+        assertThat(awaiter.isFresherThan(Duration.ZERO)).isFalse();
+    }
+
+    @Test public void testConfirmedKeepsLatest() {
+        long now = System.nanoTime();
+        awaiter.confirmed(now);
+        awaiter.confirmed(now - Duration.ofDays(1).toNanos());
+        assertThat(awaiter.isFresherThan(Duration.ofHours(1))).isTrue();
+    }
+
+    @Test public void testProgressSameRevision() throws TimeoutException, InterruptedException {
+        awaiter.update(1);
+        awaiter.progress(1);
+        awaiter.await(1, MS_100);
+        assertThat(awaiter.getCurrentRev()).isEqualTo(1L);
+    }
+
+    @Test public void testProgressHigherRevisionNotifies() throws TimeoutException, InterruptedException {
+        awaiter.progress(3);
+        awaiter.await(2, MS_100);
+        assertThat(awaiter.isFresherThan(Duration.ofDays(1))).isTrue();
+    }
+
+    @Test public void testAwaitAsync() {
+        CompletionStage<Void> future1 = awaiter.awaitAsync(1);
+        CompletionStage<Void> future2 = awaiter.awaitAsync(2);
+        assertThat(future1.toCompletableFuture().isDone()).isFalse();
+        awaiter.update(1);
+        assertThat(future1.toCompletableFuture().isDone()).isTrue();
+        assertThat(future2.toCompletableFuture().isDone()).isFalse();
+        awaiter.update(3);
+        assertThat(future2.toCompletableFuture().isDone()).isTrue();
+        assertThat(awaiter.awaitAsync(3).toCompletableFuture().isDone()).isTrue();
+    }
 }
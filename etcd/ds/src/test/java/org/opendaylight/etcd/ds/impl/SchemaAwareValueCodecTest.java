@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.math.BigInteger;
+import org.junit.Test;
+import org.opendaylight.mdsal.binding.generator.impl.ModuleInfoBackedContext;
+import org.opendaylight.mdsal.binding.spec.reflect.BindingReflections;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.Empty;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.BooleanTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EmptyTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition.EnumPair;
+import org.opendaylight.yangtools.yang.model.api.type.IdentityrefTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int8TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.StringTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint8TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.UnionTypeDefinition;
+
+/**
+ * Unit test for {@link SchemaAwareValueCodec}.
+ */
+@SuppressWarnings("javadoc")
+public class SchemaAwareValueCodecTest {
+
+    private final SchemaAwareValueCodec codec = new SchemaAwareValueCodec(newSchemaContext(), new QNameDictionary());
+
+    @Test
+    public void testBoolean() throws IOException {
+        assertRoundTrip(mock(BooleanTypeDefinition.class), true);
+        assertRoundTrip(mock(BooleanTypeDefinition.class), false);
+    }
+
+    @Test
+    public void testInt8() throws IOException {
+        assertRoundTrip(mock(Int8TypeDefinition.class), Byte.MIN_VALUE);
+        assertRoundTrip(mock(Int8TypeDefinition.class), Byte.MAX_VALUE);
+    }
+
+    @Test
+    public void testInt16() throws IOException {
+        assertRoundTrip(mock(Int16TypeDefinition.class), Short.MIN_VALUE);
+        assertRoundTrip(mock(Int16TypeDefinition.class), Short.MAX_VALUE);
+    }
+
+    @Test
+    public void testInt32() throws IOException {
+        assertRoundTrip(mock(Int32TypeDefinition.class), Integer.MIN_VALUE);
+        assertRoundTrip(mock(Int32TypeDefinition.class), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testInt64() throws IOException {
+        assertRoundTrip(mock(Int64TypeDefinition.class), Long.MIN_VALUE);
+        assertRoundTrip(mock(Int64TypeDefinition.class), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testUint8() throws IOException {
+        assertRoundTrip(mock(Uint8TypeDefinition.class), (short) 0);
+        assertRoundTrip(mock(Uint8TypeDefinition.class), (short) 255);
+    }
+
+    @Test
+    public void testUint16() throws IOException {
+        assertRoundTrip(mock(Uint16TypeDefinition.class), 0);
+        assertRoundTrip(mock(Uint16TypeDefinition.class), 65535);
+    }
+
+    @Test
+    public void testUint32() throws IOException {
+        assertRoundTrip(mock(Uint32TypeDefinition.class), 0L);
+        assertRoundTrip(mock(Uint32TypeDefinition.class), 4294967295L);
+    }
+
+    @Test
+    public void testUint64() throws IOException {
+        assertRoundTrip(mock(Uint64TypeDefinition.class), BigInteger.ZERO);
+        assertRoundTrip(mock(Uint64TypeDefinition.class), BigInteger.valueOf(Long.MAX_VALUE));
+        assertRoundTrip(mock(Uint64TypeDefinition.class), new BigInteger("18446744073709551615"));
+    }
+
+    @Test
+    public void testString() throws IOException {
+        assertRoundTrip(mock(StringTypeDefinition.class), "");
+        assertRoundTrip(mock(StringTypeDefinition.class), "hello, wörld");
+    }
+
+    @Test
+    public void testEnumeration() throws IOException {
+        EnumTypeDefinition type = mock(EnumTypeDefinition.class);
+        ImmutableList<EnumPair> enumPairs = ImmutableList.of(newEnumPair("one", 1), newEnumPair("minus-one", -1));
+        when(type.getValues()).thenReturn(enumPairs);
+        assertRoundTrip(type, "one");
+        assertRoundTrip(type, "minus-one");
+        assertThat(codec.canWrite(type, "two")).isFalse();
+    }
+
+    @Test
+    public void testIdentityref() throws IOException {
+        assertRoundTrip(mock(IdentityrefTypeDefinition.class), HelloWorldContainer.QNAME);
+        assertRoundTrip(mock(IdentityrefTypeDefinition.class), QName.create(HelloWorldContainer.QNAME, "other"));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertRoundTrip(mock(EmptyTypeDefinition.class), Empty.getInstance());
+    }
+
+    @Test
+    public void testCannotWriteUnsupportedTypeOrValue() {
+        assertThat(codec.canWrite(mock(UnionTypeDefinition.class), "hello")).isFalse();
+        assertThat(codec.canWrite(mock(Int8TypeDefinition.class), 1)).isFalse();
+        assertThat(codec.canWrite(mock(Uint64TypeDefinition.class), BigInteger.valueOf(-1))).isFalse();
+        assertThat(codec.canWrite(mock(Uint64TypeDefinition.class), BigInteger.ONE.shiftLeft(64))).isFalse();
+    }
+
+    @Test
+    public void testGetLeafType() {
+        YangInstanceIdentifier containerPath = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        assertThat(codec.getLeafType(containerPath.node(QName.create(HelloWorldContainer.QNAME, "name"))))
+                .isInstanceOf(StringTypeDefinition.class);
+        assertThat(codec.getLeafType(containerPath)).isNull();
+    }
+
+    private void assertRoundTrip(TypeDefinition<?> type, Object value) throws IOException {
+        assertThat(codec.canWrite(type, value)).isTrue();
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        codec.write(output, type, value);
+        assertThat(codec.read(ByteStreams.newDataInput(output.toByteArray()), type)).isEqualTo(value);
+    }
+
+    private static EnumPair newEnumPair(String name, int value) {
+        EnumPair enumPair = mock(EnumPair.class);
+        when(enumPair.getName()).thenReturn(name);
+        when(enumPair.getValue()).thenReturn(value);
+        return enumPair;
+    }
+
+    private static SchemaContext newSchemaContext() {
+        ModuleInfoBackedContext moduleContext = ModuleInfoBackedContext.create();
+        moduleContext.addModuleInfos(BindingReflections.loadModuleInfos());
+        return moduleContext.tryToCreateSchemaContext().get();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import io.etcd.jetcd.ByteSequence;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ValueCompression}.
+ */
+@SuppressWarnings("javadoc")
+public class ValueCompressionTest {
+
+    @Test
+    public void testLargeValueIsCompressedAndDecompressed() throws IOException {
+        ByteSequence value = ByteSequence.from(Strings.repeat("hello, world ", 1000), StandardCharsets.UTF_8);
+        ByteSequence compressed = ValueCompression.compress(value, 1024);
+        assertThat(ValueCompression.isCompressed(compressed)).isTrue();
+        assertThat(compressed.size()).isLessThan(value.size());
+        assertThat(ValueCompression.decompress(compressed)).isEqualTo(value);
+    }
+
+    @Test
+    public void testSmallValueIsNotCompressed() throws IOException {
+        ByteSequence value = ByteSequence.from("hello, world", StandardCharsets.UTF_8);
+        assertThat(ValueCompression.compress(value, 1024)).isSameAs(value);
+        assertThat(ValueCompression.decompress(value)).isSameAs(value);
+    }
+
+    @Test
+    public void testIncompressibleValueIsNotCompressed() throws IOException {
+        byte[] bytes = new byte[4096];
+        new Random(123).nextBytes(bytes);
+        ByteSequence value = ByteSequence.from(bytes);
+        assertThat(ValueCompression.compress(value, 1024)).isSameAs(value);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedValue() throws IOException {
+        ByteSequence value = ByteSequence.from(Strings.repeat("hello, world ", 1000), StandardCharsets.UTF_8);
+        byte[] compressed = ValueCompression.compress(value, 1024).getBytes();
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        ValueCompression.decompress(ByteSequence.from(truncated));
+    }
+}
@@ -9,6 +9,7 @@ package org.opendaylight.etcd.utils.test;
 
 import static com.google.common.truth.Truth.assertThat;
 import static io.etcd.jetcd.ByteSequence.from;
+import static org.opendaylight.etcd.utils.ByteSequences.prefixEnd;
 import static org.opendaylight.etcd.utils.ByteSequences.toStringable;
 
 import io.etcd.jetcd.ByteSequence;
@@ -33,6 +34,14 @@ public class ByteSequencesTest {
         assertBytesToString("«a·0A»", 97, 10);
     }
 
+    @Test
+    public void testPrefixEnd() {
+        assertThat(prefixEnd(from(bytes(65)))).isEqualTo(from(bytes(66)));
+        assertThat(prefixEnd(from(bytes(65, 0)))).isEqualTo(from(bytes(65, 1)));
+        assertThat(prefixEnd(from(bytes(65, 255)))).isEqualTo(from(bytes(66)));
+        assertThat(prefixEnd(from(bytes(255, 255)))).isEqualTo(from(bytes(0)));
+    }
+
     private static void assertBytesToString(String expectedText, int... givenBytes) {
         assertThat(toStringable(from(bytes(givenBytes))).toString()).isEqualTo(expectedText);
     }
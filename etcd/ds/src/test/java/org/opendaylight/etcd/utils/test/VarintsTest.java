@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.utils.test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import org.junit.Test;
+import org.opendaylight.etcd.utils.Varints;
+
+/**
+ * Unit test for {@link Varints}.
+ */
+public class VarintsTest {
+
+    @Test
+    public void testInts() throws IOException {
+        assertIntRoundTrip(0, 1);
+        assertIntRoundTrip(1, 1);
+        assertIntRoundTrip(127, 1);
+        assertIntRoundTrip(128, 2);
+        assertIntRoundTrip(16383, 2);
+        assertIntRoundTrip(16384, 3);
+        assertIntRoundTrip(Integer.MAX_VALUE, 5);
+    }
+
+    @Test
+    public void testLongs() throws IOException {
+        assertLongRoundTrip(0L, 1);
+        assertLongRoundTrip(Long.MAX_VALUE, 9);
+        assertLongRoundTrip(-1L, 10);
+    }
+
+    @Test
+    public void testSignedLongs() throws IOException {
+        assertSignedLongRoundTrip(0L, 1);
+        assertSignedLongRoundTrip(-1L, 1);
+        assertSignedLongRoundTrip(63L, 1);
+        assertSignedLongRoundTrip(-64L, 1);
+        assertSignedLongRoundTrip(64L, 2);
+        assertSignedLongRoundTrip(Long.MIN_VALUE, 10);
+        assertSignedLongRoundTrip(Long.MAX_VALUE, 10);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooLargeForInt() throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Varints.writeUnsignedVarLong(output, 1L << 32);
+        Varints.readUnsignedVarInt(ByteStreams.newDataInput(output.toByteArray()));
+    }
+
+    private static void assertIntRoundTrip(int value, int expectedLength) throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Varints.writeUnsignedVarInt(output, value);
+        byte[] bytes = output.toByteArray();
+        assertThat(bytes).hasLength(expectedLength);
+        assertThat(Varints.readUnsignedVarInt(ByteStreams.newDataInput(bytes))).isEqualTo(value);
+    }
+
+    private static void assertLongRoundTrip(long value, int expectedLength) throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Varints.writeUnsignedVarLong(output, value);
+        byte[] bytes = output.toByteArray();
+        assertThat(bytes).hasLength(expectedLength);
+        assertThat(Varints.readUnsignedVarLong(ByteStreams.newDataInput(bytes))).isEqualTo(value);
+    }
+
+    private static void assertSignedLongRoundTrip(long value, int expectedLength) throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Varints.writeSignedVarLong(output, value);
+        byte[] bytes = output.toByteArray();
+        assertThat(bytes).hasLength(expectedLength);
+        assertThat(Varints.readSignedVarLong(ByteStreams.newDataInput(bytes))).isEqualTo(value);
+    }
+}
@@ -9,10 +9,14 @@ package org.opendaylight.etcd.testutils;
 
 import com.google.common.collect.ImmutableSet;
 import io.etcd.jetcd.Client;
+import java.util.concurrent.CompletionStage;
 import javassist.ClassPool;
 import javax.annotation.PostConstruct;
 import org.opendaylight.controller.md.sal.binding.test.SchemaContextSingleton;
+import org.opendaylight.etcd.ds.impl.Consistency;
 import org.opendaylight.etcd.ds.impl.EtcdDOMDataBrokerProvider;
+import org.opendaylight.etcd.ds.impl.EtcdDataStore;
+import org.opendaylight.etcd.ds.impl.StorageGranularity;
 import org.opendaylight.etcd.ds.impl.TestTool;
 import org.opendaylight.mdsal.binding.api.DataBroker;
 import org.opendaylight.mdsal.binding.dom.adapter.BindingDOMDataBrokerAdapter;
@@ -27,6 +31,7 @@ import org.opendaylight.mdsal.binding.generator.impl.ModuleInfoBackedContext;
 import org.opendaylight.mdsal.binding.generator.util.JavassistUtils;
 import org.opendaylight.mdsal.binding.spec.reflect.BindingReflections;
 import org.opendaylight.mdsal.dom.api.DOMDataBroker;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeReadTransaction;
 import org.opendaylight.mdsal.dom.api.DOMSchemaService;
 import org.opendaylight.yangtools.yang.binding.YangModuleInfo;
 import org.opendaylight.yangtools.yang.model.api.SchemaContext;
@@ -40,22 +45,28 @@ public class TestEtcdDataBrokerProvider implements AutoCloseable {
 
     private final MockSchemaService schemaService;
     private final EtcdDOMDataBrokerProvider wiring;
+    private final BindingToNormalizedNodeCodec bindingToNormalized;
     private final DataBroker dataBroker;
 
     // TODO pass Client instead of ClientBuilder
     public TestEtcdDataBrokerProvider(Client client, String name) throws Exception {
+        this(client, name, StorageGranularity.EVERY_NODE);
+    }
+
+    public TestEtcdDataBrokerProvider(Client client, String name, StorageGranularity granularity) throws Exception {
         // from org.opendaylight.mdsal.binding.dom.adapter.test.AbstractDataBrokerTestCustomizer
         schemaService = new MockSchemaService();
 
         // create DOMDataBroker
-        wiring = new EtcdDOMDataBrokerProvider(client, name, schemaService);
+        wiring = new EtcdDOMDataBrokerProvider(client, name, schemaService, null, granularity, Consistency.STRONG,
+                EtcdDataStore.DEFAULT_MAX_STALENESS);
 
         // create DataBroker
         ClassPool pool = ClassPool.getDefault();
         ClassLoadingStrategy classLoading = GeneratedClassLoadingStrategy.getTCCLClassLoadingStrategy();
         DataObjectSerializerGenerator generator = StreamWriterGenerator.create(JavassistUtils.forClassPool(pool));
         BindingNormalizedNodeCodecRegistry codecs = new BindingNormalizedNodeCodecRegistry(generator);
-        BindingToNormalizedNodeCodec bindingToNormalized = new BindingToNormalizedNodeCodec(classLoading, codecs);
+        bindingToNormalized = new BindingToNormalizedNodeCodec(classLoading, codecs);
         schemaService.registerSchemaContextListener(bindingToNormalized);
         dataBroker = new BindingDOMDataBrokerAdapter(wiring.getDOMDataBroker(), bindingToNormalized);
 
@@ -84,6 +95,14 @@ public class TestEtcdDataBrokerProvider implements AutoCloseable {
         return dataBroker;
     }
 
+    public DataBroker getDataBroker(Consistency consistency) {
+        return new BindingDOMDataBrokerAdapter(wiring.getDOMDataBroker(consistency), bindingToNormalized);
+    }
+
+    public CompletionStage<DOMDataTreeReadTransaction> newReadOnlyTransactionAsync(Consistency consistency) {
+        return wiring.newReadOnlyTransactionAsync(consistency);
+    }
+
     public TestTool getTestTool() {
         return wiring.getTestTool();
     }
@@ -8,6 +8,8 @@
 package org.opendaylight.etcd.testutils.test;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.opendaylight.controller.md.sal.test.model.util.ListsBindingUtils.TOP_BAR_KEY;
 import static org.opendaylight.controller.md.sal.test.model.util.ListsBindingUtils.TOP_FOO_KEY;
 import static org.opendaylight.controller.md.sal.test.model.util.ListsBindingUtils.path;
 import static org.opendaylight.controller.md.sal.test.model.util.ListsBindingUtils.topLevelList;
@@ -26,6 +28,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import org.junit.After;
 import org.junit.Before;
@@ -33,7 +36,9 @@ import org.junit.ClassRule;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
+import org.opendaylight.etcd.ds.impl.Consistency;
 import org.opendaylight.etcd.ds.impl.EtcdDataStore;
+import org.opendaylight.etcd.ds.impl.StorageGranularity;
 import org.opendaylight.etcd.testutils.EtcdLauncherRule;
 import org.opendaylight.etcd.testutils.TestEtcdDataBrokerProvider;
 import org.opendaylight.infrautils.testutils.LogRule;
@@ -43,6 +48,7 @@ import org.opendaylight.mdsal.binding.api.WriteTransaction;
 import org.opendaylight.mdsal.common.api.DataValidationFailedException;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
 import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeReadTransaction;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer2;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer2Builder;
@@ -59,6 +65,7 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.controll
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.controller.md.sal.test.list.rev140701.two.level.list.top.level.list.NestedListBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.controller.md.sal.test.list.rev140701.two.level.list.top.level.list.NestedListKey;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -99,11 +106,15 @@ public class EtcdDBTest {
     }
 
     private void recreateFreshDataBrokerClient() throws Exception {
+        recreateFreshDataBrokerClient(StorageGranularity.EVERY_NODE);
+    }
+
+    private void recreateFreshDataBrokerClient(StorageGranularity granularity) throws Exception {
         LOG.info("recreateFreshDataBrokerClient()");
         closeProviders();
-        dbProviderA = new TestEtcdDataBrokerProvider(client, "a");
+        dbProviderA = new TestEtcdDataBrokerProvider(client, "a", granularity);
         dataBrokerA = dbProviderA.getDataBroker();
-        dbProviderB = new TestEtcdDataBrokerProvider(client, "b");
+        dbProviderB = new TestEtcdDataBrokerProvider(client, "b", granularity);
         dataBrokerB = dbProviderB.getDataBroker();
     }
 
@@ -142,6 +153,44 @@ public class EtcdDBTest {
         }
     }
 
+    @Test
+    public void testSessionConsistencyReadsOwnWrites() throws Exception {
+        DataBroker sessionDataBroker = dbProviderA.getDataBroker(Consistency.SESSION);
+        InstanceIdentifier<HelloWorldContainer> iid = InstanceIdentifier.create(HelloWorldContainer.class);
+        WriteTransaction writeTx = sessionDataBroker.newWriteOnlyTransaction();
+        writeTx.put(OPERATIONAL, iid, new HelloWorldContainerBuilder().setName("hello, session").build());
+        writeTx.commit().get();
+
+        try (ReadTransaction readTx = sessionDataBroker.newReadOnlyTransaction()) {
+            assertThat(readTx.read(OPERATIONAL, iid).get().get().getName()).isEqualTo("hello, session");
+        }
+    }
+
+    @Test
+    public void testNewReadOnlyTransactionAsyncOnB() throws Exception {
+        writeInitialState();
+        try (DOMDataTreeReadTransaction readTx = dbProviderB.newReadOnlyTransactionAsync(Consistency.STRONG)
+                .toCompletableFuture().get()) {
+            assertThat(readTx.read(OPERATIONAL, YangInstanceIdentifier.of(Top.QNAME)).get().isPresent()).isTrue();
+        }
+    }
+
+    @Test
+    public void testNewReadOnlyTransactionAsyncCallbackOpensStrongTransaction() throws Exception {
+        writeInitialState();
+        CompletionStage<Boolean> callback = dbProviderB.newReadOnlyTransactionAsync(Consistency.STRONG)
+            .thenApply(asyncReadTx -> {
+                asyncReadTx.close();
+                // this blocks until the server revision was applied, which must not deadlock or time out
+                try (ReadTransaction readTx = dataBrokerB.newReadOnlyTransaction()) {
+                    return readTx.read(OPERATIONAL, TOP_PATH).get().isPresent();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        assertThat(callback.toCompletableFuture().get(10, SECONDS)).isTrue();
+    }
+
     @Test
     public void testPutSomethingSlightlyMoreComplexIntoAReadItBackOnB() throws Exception {
         writeInitialState();
@@ -179,12 +228,62 @@ public class EtcdDBTest {
         }
     }
 
+    private long countEtcdKeys(ByteSequence keyPrefix) throws InterruptedException, ExecutionException {
+        try (KV kvClient = client.getKVClient()) {
+            return kvClient.get(keyPrefix, GetOption.newBuilder().withPrefix(keyPrefix).withCountOnly(true).build())
+                    .get().getCount();
+        }
+    }
+
     private void deleteEtcd(ByteSequence keyPrefix) throws InterruptedException, ExecutionException {
         try (KV kvClient = client.getKVClient()) {
             kvClient.delete(keyPrefix, DeleteOption.newBuilder().withPrefix(keyPrefix).build()).get();
         }
     }
 
+    @Test
+    public void testListEntriesWithLeavesGranularity() throws Exception {
+        writeInitialState();
+        long everyNodeKeys = countEtcdKeys(EtcdDataStore.OPERATIONAL_PREFIX);
+        deleteTop();
+
+        recreateFreshDataBrokerClient(StorageGranularity.LIST_ENTRIES_WITH_LEAVES);
+        writeInitialState();
+        assertThat(countEtcdKeys(EtcdDataStore.OPERATIONAL_PREFIX)).isLessThan(everyNodeKeys);
+        assertThat(isTopInDataStore(dataBrokerB)).isTrue();
+
+        // read back from etcd, instead of from what the watch applied
+        recreateFreshDataBrokerClient(StorageGranularity.LIST_ENTRIES_WITH_LEAVES);
+        assertThat(isTopInDataStore()).isTrue();
+        deleteTop();
+        assertThat(isTopInDataStore(dataBrokerB)).isFalse();
+        assertThatEtcdIsEmpty(EtcdDataStore.OPERATIONAL_PREFIX);
+    }
+
+    @Test
+    public void testElidedStructuralNodeIsDeletedWithItsLastChild() throws Exception {
+        recreateFreshDataBrokerClient(StorageGranularity.elidingStructuralNodes(StorageGranularity.EVERY_NODE));
+        // written while empty, so Top is stored under its own key
+        WriteTransaction emptyTopTx = dataBrokerA.newWriteOnlyTransaction();
+        emptyTopTx.put(OPERATIONAL, TOP_PATH, new TopBuilder().build());
+        emptyTopTx.commit().get();
+        writeInitialState();
+        assertThat(isTopInDataStore(dataBrokerB)).isTrue();
+
+        // read back from etcd, with the elided list (which has no key) recreated from the list entry
+        recreateFreshDataBrokerClient(StorageGranularity.elidingStructuralNodes(StorageGranularity.EVERY_NODE));
+        assertThat(isTopInDataStore()).isTrue();
+
+        WriteTransaction deleteTx = dataBrokerA.newWriteOnlyTransaction();
+        deleteTx.delete(OPERATIONAL, path(TOP_FOO_KEY));
+        deleteTx.commit().get();
+        assertThat(isTopInDataStore(dataBrokerB)).isFalse();
+        assertThatEtcdIsEmpty(EtcdDataStore.OPERATIONAL_PREFIX);
+
+        recreateFreshDataBrokerClient(StorageGranularity.elidingStructuralNodes(StorageGranularity.EVERY_NODE));
+        assertThat(isTopInDataStore()).isFalse();
+    }
+
     @Test
     public void testPutSomethingMoreComplexForSubTreeIntoDSReadItBackAndDelete() throws Exception {
         NestedList nl1 = new NestedListBuilder().withKey(new NestedListKey("nested1"))
@@ -288,6 +387,82 @@ public class EtcdDBTest {
         txB.commit().get();
     }
 
+    /**
+     * Test that a write-only transaction following a commit of the same thread does not conflict with it.
+     */
+    @Test
+    public void testWriteAfterOwnCommit() throws Exception {
+        InstanceIdentifier<HelloWorldContainer> iid = InstanceIdentifier.create(HelloWorldContainer.class);
+        WriteTransaction tx1 = dataBrokerA.newWriteOnlyTransaction();
+        tx1.put(OPERATIONAL, iid, new HelloWorldContainerBuilder().setName("hello").build());
+        tx1.commit().get();
+
+        WriteTransaction tx2 = dataBrokerA.newWriteOnlyTransaction();
+        tx2.put(OPERATIONAL, iid, new HelloWorldContainerBuilder().setName("world").build());
+        tx2.commit().get();
+    }
+
+    /**
+     * Test that a delete which concurrently had a child added on another cluster node fails, instead of losing it.
+     */
+    @Test
+    public void testDeleteConflictsWithChildWriteInCluster() throws Exception {
+        writeInitialState();
+        assertThat(isTopInDataStore(dataBrokerB)).isTrue();
+
+        dbProviderB.getTestTool().dropWatchNotifications(true);
+        WriteTransaction txB = dataBrokerB.newWriteOnlyTransaction();
+        txB.delete(OPERATIONAL, TOP_PATH);
+
+        WriteTransaction txA = dataBrokerA.newWriteOnlyTransaction();
+        txA.put(OPERATIONAL, path(TOP_BAR_KEY), topLevelList(TOP_BAR_KEY));
+        txA.commit().get();
+
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> txB.commit().get());
+        assertThat(ex.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+    }
+
+    /**
+     * Test that a write of a node which was concurrently deleted on another cluster node fails, instead of
+     * bringing it back.
+     */
+    @Test
+    public void testWriteConflictsWithDeleteInCluster() throws Exception {
+        writeInitialState();
+        assertThat(isTopInDataStore(dataBrokerB)).isTrue();
+
+        dbProviderB.getTestTool().dropWatchNotifications(true);
+        WriteTransaction txB = dataBrokerB.newWriteOnlyTransaction();
+        txB.put(OPERATIONAL, path(TOP_FOO_KEY), topLevelList(TOP_FOO_KEY));
+
+        deleteTop();
+
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> txB.commit().get());
+        assertThat(ex.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        assertThat(isTopInDataStore(dataBrokerA)).isFalse();
+    }
+
+    /**
+     * Test that a write below a node which was concurrently deleted on another cluster node fails, instead of
+     * writing a child without its parent.
+     */
+    @Test
+    public void testChildWriteConflictsWithParentDeleteInCluster() throws Exception {
+        writeInitialState();
+        assertThat(isTopInDataStore(dataBrokerB)).isTrue();
+
+        dbProviderB.getTestTool().dropWatchNotifications(true);
+        WriteTransaction txB = dataBrokerB.newWriteOnlyTransaction();
+        txB.put(OPERATIONAL, path(TOP_BAR_KEY), topLevelList(TOP_BAR_KEY));
+
+        deleteTop();
+
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> txB.commit().get());
+        assertThat(ex.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        assertThat(isTopInDataStore(dataBrokerA)).isFalse();
+        assertThatEtcdIsEmpty(EtcdDataStore.OPERATIONAL_PREFIX);
+    }
+
     private void deleteTop() throws Exception {
         LOG.info("deleteTop()");
         WriteTransaction deleteTx = dataBrokerA.newWriteOnlyTransaction();